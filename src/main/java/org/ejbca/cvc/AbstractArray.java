@@ -12,8 +12,13 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 
 import org.ejbca.cvc.exception.ConstructionException;
@@ -31,8 +36,17 @@ public abstract class AbstractArray extends AbstractSequence {
 
    private static final long serialVersionUID = 1L;
 
-   private final List<CVCObject> subfields = new ArrayList<CVCObject>();
-   private final CVCTagEnum allowedField;
+   /** Serialized as before, with the subfields in a List */
+   private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("subfields", List.class), new ObjectStreamField("allowedField", CVCTagEnum.class)
+   };
+
+   private static final CVCObject[] NO_FIELDS = new CVCObject[0];
+
+   // The added fields in order, followed by unused slots
+   private transient CVCObject[] subfields = NO_FIELDS;
+   private transient int count;
+   private transient CVCTagEnum allowedField;
 
    /**
     * Constructor, must supply the tag
@@ -43,6 +57,29 @@ public abstract class AbstractArray extends AbstractSequence {
       this.allowedField = getAllowedField();
    }
 
+   private void writeObject(final ObjectOutputStream out) throws IOException {
+      final ObjectOutputStream.PutField fields = out.putFields();
+      fields.put("subfields", new ArrayList<CVCObject>(Arrays.asList(subfields).subList(0, count)));
+      fields.put("allowedField", allowedField);
+      out.writeFields();
+   }
+
+   private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+      final List<?> fields = (List<?>)in.readFields().get("subfields", null);
+      allowedField = getAllowedField();
+      subfields = NO_FIELDS;
+      count = 0;
+      if( fields!=null ){
+         subfields = new CVCObject[fields.size()];
+         for( Object field : fields ){
+            if( !(field instanceof CVCObject) || ((CVCObject)field).getTag()!=allowedField ){
+               throw new InvalidObjectException("Field " + field + " not allowed in " + getClass().getName());
+            }
+            subfields[count++] = (CVCObject)field;
+         }
+      }
+   }
+
    /**
     * Adds a subfield to this sequence. Nothing happens if the argument is null.
     * @param field
@@ -55,7 +92,11 @@ public abstract class AbstractArray extends AbstractSequence {
             throw new ConstructionException("Field " + field.getTag() + " not allowed in " + getClass().getName());
          }
          field.setParent(this);
-         subfields.add(field);
+         if( count==subfields.length ){
+            subfields = Arrays.copyOf(subfields, Math.max(4, count*2));
+         }
+         subfields[count++] = field;
+         invalidateEncoding();
       }
    }
 
@@ -82,19 +123,9 @@ public abstract class AbstractArray extends AbstractSequence {
       throw new IllegalStateException("Not applicable to AbstractArray");
    }
 
-   /**
-    * Returns all added subfields
-    * @return
-    */
-   @Override
-   protected Collection<CVCObject> getSubfields() {
-      return new ArrayList<CVCObject>(subfields);
-   }
-   
-   // Returns a List of ordered subfields
    @Override
-   protected List<CVCObject> getOrderedSubfields() {
-      return new ArrayList<CVCObject>(subfields);
+   CVCObject[] getSubfieldSlots() {
+      return subfields;
    }
 
 }
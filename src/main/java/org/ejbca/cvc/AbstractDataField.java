@@ -59,6 +59,41 @@ public abstract class AbstractDataField
       return out.size()-s0;
    }
 
+   /**
+    * Returns the number of bytes in the value, that is the length of getEncoded().
+    * Subclasses that know the length without encoding should override this.
+    * @return
+    */
+   protected int getValueLength() {
+      return getEncoded().length;
+   }
+
+   /**
+    * Writes the value bytes to 'out', which must have room for getValueLength() bytes.
+    * Subclasses that can write the value without allocating should override this.
+    * @param out
+    * @param pos
+    * @return the position following the value
+    */
+   protected int writeValue(byte[] out, int pos) {
+      final byte[] databytes = getEncoded();
+      System.arraycopy(databytes, 0, out, pos, databytes.length);
+      return pos + databytes.length;
+   }
+
+   @Override
+   int getEncodedLength() {
+      final int len = getValueLength();
+      return getTagLength(getTag().getValue()) + getLengthLength(len) + len;
+   }
+
+   @Override
+   int encodeTo(final byte[] out, int pos) {
+      pos = writeTag(out, pos, getTag().getValue());
+      pos = writeLength(out, pos, getValueLength());
+      return writeValue(out, pos);
+   }
+
 
    /**
     * Returns this field as text
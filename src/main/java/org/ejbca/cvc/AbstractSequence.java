@@ -12,21 +12,35 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.ejbca.cvc.exception.ConstructionException;
 
 
 /**
- * Represents a CVC sequence, i e contains one or more subfields
+ * Represents a CVC sequence, i e contains one or more subfields.
+ * <p>
+ * A sequence created by the parser keeps a reference to the exact bytes it was 
+ * decoded from. These are used instead of re-encoding the subfields until the
+ * sequence, or anything below it, is modified.
+ * <p>
+ * Subfields are stored in an array with one slot for each allowed field, in the
+ * order given by getAllowedFields(), which must be the same for all instances of
+ * a class.
  * 
  * @author Keijo Kurkinen, Swedish National Police Board
  * @version $Id$
@@ -35,9 +49,25 @@ import org.ejbca.cvc.exception.ConstructionException;
 public abstract class AbstractSequence extends CVCObject {
 
    private static final long serialVersionUID = 1L;
+
+   /** Serialized as before, with the subfields in a Map by tag and the allowed fields in a List */
+   private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("subfields", Map.class), new ObjectStreamField("allowedFields", List.class)
+   };
 	
-   private final Map<CVCTagEnum, CVCObject> subfields = new HashMap<CVCTagEnum, CVCObject>();
-   private final List<CVCTagEnum> allowedFields;
+   /** Layout of the allowed fields for each subclass */
+   private static final ConcurrentHashMap<Class<?>, Layout> LAYOUTS = new ConcurrentHashMap<Class<?>, Layout>();
+
+   private transient Layout layout;
+   private transient CVCObject[] subfields;
+
+   /** Region of a parsed array holding this sequence's tag, length and value, or null */
+   private transient byte[] encoded;
+   private transient int encodedOffset;
+   private transient int encodedLength;
+
+   /** Value length computed by the last call to getEncodedLength() */
+   private transient int valueLength;
 
    /**
     * Constructor, must supply the tag
@@ -45,7 +75,41 @@ public abstract class AbstractSequence extends CVCObject {
     */
    AbstractSequence(final CVCTagEnum type){
       super(type);
-      this.allowedFields = Arrays.asList(getAllowedFields());
+      this.layout = getLayout();
+      this.subfields = new CVCObject[layout.allowedFields.length];
+   }
+
+   private Layout getLayout() {
+      final Layout cached = LAYOUTS.get(getClass());
+      return cached!=null ? cached : LAYOUTS.computeIfAbsent(getClass(), c -> new Layout(getAllowedFields()));
+   }
+
+   private void writeObject(final ObjectOutputStream out) throws IOException {
+      final Map<CVCTagEnum, CVCObject> fields = new HashMap<CVCTagEnum, CVCObject>();
+      for( CVCObject field : subfields ){
+         if( field!=null ){
+            fields.put(field.getTag(), field);
+         }
+      }
+      final ObjectOutputStream.PutField putFields = out.putFields();
+      putFields.put("subfields", fields);
+      putFields.put("allowedFields", new ArrayList<CVCTagEnum>(Arrays.asList(layout.allowedFields)));
+      out.writeFields();
+   }
+
+   private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+      final Map<?, ?> fields = (Map<?, ?>)in.readFields().get("subfields", null);
+      layout = getLayout();
+      subfields = new CVCObject[layout.allowedFields.length];
+      if( fields!=null ){
+         for( Object field : fields.values() ){
+            final int slot = field instanceof CVCObject ? layout.getSlot(((CVCObject)field).getTag()) : -1;
+            if( slot<0 ){
+               throw new InvalidObjectException("Field " + field + " not allowed in " + getClass().getName());
+            }
+            subfields[slot] = (CVCObject)field;
+         }
+      }
    }
 
    /**
@@ -65,13 +129,15 @@ public abstract class AbstractSequence extends CVCObject {
     */
    void addSubfield(final CVCObject field, boolean override) throws ConstructionException {
       if( field!=null ){
-         if( allowedFields.contains(field.getTag() )) {
-            if( subfields.containsKey(field.getTag()) && !override){
+         final int slot = layout.getSlot(field.getTag());
+         if( slot>=0 ) {
+            if( subfields[slot]!=null && !override){
                throw new ConstructionException("Field " + field.getTag() + " has already been added to " + getClass().getName());
             }
             else {
                field.setParent(this);
-               subfields.put(field.getTag(), field);
+               subfields[slot] = field;
+               invalidateEncoding();
             }
          }
          else {
@@ -81,6 +147,50 @@ public abstract class AbstractSequence extends CVCObject {
    }
 
 
+   /**
+    * Sets the original encoding of this sequence. Used by the parser once all 
+    * subfields have been added.
+    * @param source array holding the encoding
+    * @param offset start of the tag
+    * @param length length of tag, length and value
+    */
+   void setEncoded(final byte[] source, final int offset, final int length) {
+      this.encoded = source;
+      this.encodedOffset = offset;
+      this.encodedLength = length;
+   }
+
+   /**
+    * Returns true if the original encoding of this sequence can be used. Subclasses
+    * whose encoding depends on the enclosing sequence can override this.
+    * @return
+    */
+   boolean hasEncoded() {
+      return encoded!=null;
+   }
+
+   @Override
+   void invalidateEncoding() {
+      encoded = null;
+      super.invalidateEncoding();
+   }
+
+   /**
+    * Feeds the DER-encoding of this sequence to a Signature, without copying
+    * when the original encoding is available.
+    * @param signature
+    * @throws SignatureException
+    * @throws IOException
+    */
+   void updateSignature(final Signature signature) throws SignatureException, IOException {
+      if( hasEncoded() ){
+         signature.update(encoded, encodedOffset, encodedLength);
+      }
+      else {
+         signature.update(getDEREncoded());
+      }
+   }
+
    /**
     * Returns tags for all allowed subfields, in the same order as they
     * appear when DER-encoded
@@ -96,7 +206,7 @@ public abstract class AbstractSequence extends CVCObject {
     * @throws NoSuchFieldException if the subfield hasn't been added
     */
    CVCObject getSubfield(final CVCTagEnum fieldTag) throws NoSuchFieldException {
-      final CVCObject subfield = subfields.get(fieldTag);
+      final CVCObject subfield = getOptionalSubfield(fieldTag);
       if( subfield==null ){
           throw new NoSuchFieldException("Could not find subfield " + fieldTag);
       } else {
@@ -111,7 +221,8 @@ public abstract class AbstractSequence extends CVCObject {
     * @return AbstractDataField or null if the field hasn't been added
     */
    CVCObject getOptionalSubfield(final CVCTagEnum tag) {
-      return subfields.get(tag);
+      final int slot = layout.getSlot(tag);
+      return slot>=0 ? subfields[slot] : null;
    }
 
    /**
@@ -119,30 +230,67 @@ public abstract class AbstractSequence extends CVCObject {
     * @return
     */
    protected Collection<CVCObject> getSubfields() {
-      return subfields.values();
+      return getOrderedSubfields();
+   }
+
+   /**
+    * Returns the subfields in the order they are encoded. Slots of fields that
+    * have not been added are null. The array must not be modified.
+    * @return
+    */
+   CVCObject[] getSubfieldSlots() {
+      return subfields;
+   }
+
+   /**
+    * Returns the subfields to DER-encode, as getSubfieldSlots(). Subclasses that 
+    * leave out some of the added fields override this.
+    * @return
+    */
+   CVCObject[] getEncodableSlots() {
+      return getSubfieldSlots();
    }
 
    @Override
    public int encode(DataOutputStream pOut) throws IOException {
-      // Iterate over the subfields, sum up the lengths and write it the header
-      
-      // Get a local DataOutputStream to write the subfields to,
-      // so we know have many bytes we have written
-      ByteArrayOutputStream bout = new ByteArrayOutputStream();
-      DataOutputStream dout = new DataOutputStream(bout);
-      int seqLength = 0;
-      for( CVCObject subfield : getEncodableFields() ){
-         seqLength += subfield.encode(dout);
-      }
-      dout.close();
+      final byte[] der = getDEREncoded();
+      pOut.write(der);
+      return der.length;
+   }
 
-      int tag = getTag().getValue();
-      int s0 = pOut.size();
-      pOut.write( toByteArray(tag) );
-      pOut.write( encodeLength(seqLength) );
-      pOut.write( bout.toByteArray() );
+   /**
+    * Sums up the lengths of the subfields, without encoding anything. The value 
+    * length of each sequence is remembered for the following encodeTo().
+    */
+   @Override
+   int getEncodedLength() {
+      if( hasEncoded() ){
+         return encodedLength;
+      }
+      int len = 0;
+      for( CVCObject subfield : getEncodableSlots() ){
+         if( subfield!=null ){
+            len += subfield.getEncodedLength();
+         }
+      }
+      valueLength = len;
+      return getTagLength(getTag().getValue()) + getLengthLength(len) + len;
+   }
 
-      return pOut.size()-s0;
+   @Override
+   int encodeTo(final byte[] out, int pos) {
+      if( hasEncoded() ){
+         System.arraycopy(encoded, encodedOffset, out, pos, encodedLength);
+         return pos + encodedLength;
+      }
+      pos = writeTag(out, pos, getTag().getValue());
+      pos = writeLength(out, pos, valueLength);
+      for( CVCObject subfield : getEncodableSlots() ){
+         if( subfield!=null ){
+            pos = subfield.encodeTo(out, pos);
+         }
+      }
+      return pos;
    }
 
    
@@ -151,7 +299,7 @@ public abstract class AbstractSequence extends CVCObject {
     * @return
     */
    protected List<CVCObject> getEncodableFields() {
-      return getOrderedSubfields();
+      return toList(getEncodableSlots());
    }
 
    /**
@@ -160,21 +308,13 @@ public abstract class AbstractSequence extends CVCObject {
     * @throws IOException
     */
    public byte[] getDEREncoded() throws IOException {
-      
-      ByteArrayOutputStream bout = null;
-      try {
-         bout = new ByteArrayOutputStream();
-         DataOutputStream dout = new DataOutputStream(bout);
-
-         // Encode!
-         encode(dout);
-
-      }
-      finally {
-         if( bout!=null )
-            bout.close();
+      if( hasEncoded() ){
+         return Arrays.copyOfRange(encoded, encodedOffset, encodedOffset + encodedLength);
       }
-      return bout.toByteArray();
+      // Compute all lengths first so that the encoding can be written into one exact array
+      final byte[] result = new byte[getEncodedLength()];
+      encodeTo(result, 0);
+      return result;
    }
 
    /**
@@ -194,9 +334,11 @@ public abstract class AbstractSequence extends CVCObject {
    public String getAsText(String tab, boolean showTagNo) {
       StringBuffer sb = new StringBuffer();
       sb.append(super.getAsText(tab, showTagNo));
-      for( CVCObject field : getOrderedSubfields() ){
-         sb.append(NEWLINE);
-         sb.append(field.getAsText(tab + "   ", showTagNo));
+      for( CVCObject field : getSubfieldSlots() ){
+         if( field!=null ){
+            sb.append(NEWLINE);
+            sb.append(field.getAsText(tab + "   ", showTagNo));
+         }
       }
       return sb.toString();
    }
@@ -206,10 +348,14 @@ public abstract class AbstractSequence extends CVCObject {
     * Returns a List of ordered subfields
     */
    protected List<CVCObject> getOrderedSubfields() {
-      List<CVCObject> orderedList = new ArrayList<CVCObject>();
-      for( CVCTagEnum tag : allowedFields ){
-         CVCObject subfield = subfields.get(tag);
-         // Bara f�r att ett f�lt �r till�tet kanske det inte m�ste finnas
+      return toList(getSubfieldSlots());
+   }
+
+   // Copies the added fields in 'slots' to a new List
+   private static List<CVCObject> toList(final CVCObject[] slots) {
+      final List<CVCObject> orderedList = new ArrayList<CVCObject>(slots.length);
+      for( CVCObject subfield : slots ){
+         // Just because a field is allowed doesn't mean that it must exist
          if( subfield!=null ){
             orderedList.add(subfield);
          }
@@ -217,4 +363,25 @@ public abstract class AbstractSequence extends CVCObject {
       return orderedList;
    }
 
+   /** The allowed fields of a class, and the slot of each one */
+   private static final class Layout {
+      private static final int TAG_COUNT = CVCTagEnum.values().length;
+
+      final CVCTagEnum[] allowedFields;
+      // Slot for each CVCTagEnum ordinal, or -1 if the field is not allowed
+      private final byte[] slots = new byte[TAG_COUNT];
+
+      Layout(final CVCTagEnum[] allowedFields) {
+         this.allowedFields = allowedFields.clone();
+         Arrays.fill(slots, (byte)-1);
+         for( int i=0; i<allowedFields.length; i++ ){
+            slots[allowedFields[i].ordinal()] = (byte)i;
+         }
+      }
+
+      int getSlot(final CVCTagEnum tag) {
+         return slots[tag.ordinal()];
+      }
+   }
+
 }
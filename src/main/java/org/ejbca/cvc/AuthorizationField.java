@@ -12,6 +12,8 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
+import java.util.Arrays;
+
 import org.ejbca.cvc.util.StringConverter;
 
 /**
@@ -57,12 +59,23 @@ public class AuthorizationField
     * @param data
     */
    AuthorizationField(byte[] data){
+      this(data, 0, data.length);
+   }
+
+   /**
+    * Constructor for decoding a region of DER-encoded data. The bytes are copied
+    * since the raw rights value is modified when encoding.
+    * @param data
+    * @param offset
+    * @param length
+    */
+   AuthorizationField(byte[] data, int offset, int length){
       this();
-      if( data.length<1 ){
+      if( length<1 ){
          throw new IllegalArgumentException("byte array length must be at least 1");
       }
-      this.role = new AuthorizationRoleRawValue(data[0]);
-      this.rights = new AccessRightsRawValue(data);
+      this.role = new AuthorizationRoleRawValue(data[offset]);
+      this.rights = new AccessRightsRawValue(Arrays.copyOfRange(data, offset, offset + length));
    }
 
    /**
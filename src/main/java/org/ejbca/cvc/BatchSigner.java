@@ -0,0 +1,41 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.security.SignatureException;
+import java.util.List;
+
+/**
+ * Signs prepared certificates in batches, e.g. with the bulk signing command of an HSM
+ * or a remote signing service.
+ * <p>
+ * An implementation may sign the TBS of each certificate with the certificate's algorithm,
+ * or sign PreparedCertificate.getSignatureInput() with PreparedCertificate.getPreHashedAlgorithm().
+ * Signers that produce plain ECDSA signatures, such as PKCS#11 CKM_ECDSA, can attach them
+ * with PreparedCertificate.attachSignatures(List, List, boolean) instead.
+ *
+ * @see CertificateGenerator#createCertificates(List, BatchSigner)
+ * @version $Id$
+ */
+public interface BatchSigner {
+
+   /**
+    * Signs a batch of certificates
+    * @param certificates
+    * @return one signature per certificate, in the same order, in the format produced by
+    *         the JCA algorithms, that is X9.62 for ECDSA
+    * @throws SignatureException
+    */
+   public List<byte[]> sign(List<PreparedCertificate> certificates) throws SignatureException;
+
+}
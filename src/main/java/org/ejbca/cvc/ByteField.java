@@ -12,13 +12,19 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.util.Arrays;
 
 import org.ejbca.cvc.util.StringConverter;
 
 
 /**
- * Generic field representing binary data (or Octet String)
+ * Generic field representing binary data (or Octet String).
+ * <p>
+ * When created by the parser the field references its value in the parsed
+ * array, and a private copy is only made the first time getData() is called.
  * 
  * @author Keijo Kurkinen, Swedish National Police Board
  * @version $Id$
@@ -31,6 +37,11 @@ public class ByteField
     private byte[] data;
     private boolean showBitLength = false;
 
+    /** Region of a parsed array holding the value, only used until 'data' has been materialised */
+    private transient byte[] source;
+    private transient int sourceOffset;
+    private transient int sourceLength;
+
    /**
     * Constructor taking tag
     * @param tag
@@ -61,6 +72,27 @@ public class ByteField
       this.showBitLength = showBitLength;
    }
 
+   /**
+    * Constructor taking tag and a region of an array that holds the data.
+    * The region is referenced, not copied.
+    * @param tag
+    * @param source
+    * @param offset
+    * @param length
+    */
+   ByteField(CVCTagEnum tag, byte[] source, int offset, int length) {
+      super(tag);
+      if( offset==0 && length==source.length ){
+         // The array holds nothing else, so it can be used as it is
+         this.data = source;
+      }
+      else {
+         this.source = source;
+         this.sourceOffset = offset;
+         this.sourceLength = length;
+      }
+   }
+
    
    /**
     * Returns flag for 'showBitLen'
@@ -83,12 +115,58 @@ public class ByteField
     * @return
     */
    public byte[] getData() {
+      if( data==null && source!=null ){
+         data = Arrays.copyOfRange(source, sourceOffset, sourceOffset + sourceLength);
+         source = null;
+      }
       return data;
    }
 
+   /**
+    * Returns the array holding the data, without copying. Use together with 
+    * getDataOffset() and getDataLength().
+    * @return
+    */
+   byte[] getDataBuffer() {
+      return data!=null ? data : source;
+   }
+
+   /**
+    * Returns the start of the data in the array returned by getDataBuffer()
+    * @return
+    */
+   int getDataOffset() {
+      return data!=null ? 0 : sourceOffset;
+   }
+
+   /**
+    * Returns the length of the data, without copying it
+    * @return
+    */
+   int getDataLength() {
+      if( data!=null ){
+         return data.length;
+      }
+      return source!=null ? sourceLength : 0;
+   }
+
    @Override
    protected byte[] getEncoded() {
-      return data;
+      return getData();
+   }
+
+   @Override
+   protected int getValueLength() {
+      return getDataLength();
+   }
+
+   @Override
+   protected int writeValue(final byte[] out, final int pos) {
+      final int len = getDataLength();
+      if( len>0 ){
+         System.arraycopy(getDataBuffer(), getDataOffset(), out, pos, len);
+      }
+      return pos + len;
    }
 
    @Override
@@ -97,13 +175,19 @@ public class ByteField
       // Check if length in bits should be shown
       if( showBitLength ){
          int bitLength = 0;
-         if( data!=null ){
-            BigInteger big = new BigInteger(1, data);
+         if( getDataBuffer()!=null ){
+            BigInteger big = new BigInteger(1, getDataBuffer(), getDataOffset(), getDataLength());
             bitLength = big.bitLength();
          }
          lenInfo = "[" + bitLength + "]  ";
       }
-      return lenInfo + StringConverter.byteToHex(data);
+      return lenInfo + StringConverter.byteToHex(getData());
+   }
+
+   // Only the value is serialized, never the array that it was parsed from
+   private void writeObject(ObjectOutputStream out) throws IOException {
+      getData();
+      out.defaultWriteObject();
    }
 
 }
@@ -45,4 +45,15 @@ public class CAReferenceField extends ReferenceField {
         super(CVCTagEnum.CA_REFERENCE, data);
     }
 
+    /**
+     * Constructs a new instance by parsing a region of DER-encoded data
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     */
+    CAReferenceField(byte[] data, int offset, int length) {
+        super(CVCTagEnum.CA_REFERENCE, data, offset, length);
+    }
+
 }
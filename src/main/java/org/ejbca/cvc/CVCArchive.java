@@ -0,0 +1,223 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Read-only random access to a file of concatenated DER-encoded CVCertificates.
+ * <p>
+ * The file is memory-mapped and indexed in one scan over the TLV headers, which
+ * records the offset of each certificate without decoding it. Certificates are
+ * decoded when they are requested. Files larger than 2 GB are mapped in several
+ * overlapping segments, and the index uses long offsets only when int offsets
+ * are not enough.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class CVCArchive implements Closeable {
+
+   /** Size of each mapped segment, apart from the overlap */
+   private static final long SEGMENT_SIZE = 1L << 30;
+   /** Longest possible TLV: two tag bytes, four length bytes and at most 0xFFFFFF value bytes. 
+    *  Segments overlap by this much so that every TLV fits in the segment where it starts. */
+   private static final long SEGMENT_OVERLAP = 6 + 0xFFFFFF;
+
+   private final FileChannel channel;
+   private final MappedByteBuffer[] segments;
+   private final long fileSize;
+
+   // Start of each certificate. Only one of these is used, depending on the file size.
+   private int[] intOffsets;
+   private long[] longOffsets;
+   private int count;
+
+   private CVCArchive(final FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.fileSize = channel.size();
+      final int segmentCount = (int)((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      this.segments = new MappedByteBuffer[segmentCount];
+      for( int i=0; i<segmentCount; i++ ){
+         final long start = i * SEGMENT_SIZE;
+         final long size = Math.min(fileSize - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+         segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      }
+      if( fileSize<=Integer.MAX_VALUE ){
+         intOffsets = new int[16];
+      }
+      else {
+         longOffsets = new long[16];
+      }
+   }
+
+   /**
+    * Maps and indexes a file of concatenated certificates
+    * @param file
+    * @return
+    * @throws IOException if the file can not be mapped
+    * @throws ParseException if the file contains anything but complete certificate TLVs
+    */
+   public static CVCArchive open(final Path file) throws IOException, ParseException {
+      final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+         final CVCArchive archive = new CVCArchive(channel);
+         archive.buildIndex();
+         return archive;
+      }
+      catch( IOException e ){
+         channel.close();
+         throw e;
+      }
+      catch( ParseException e ){
+         channel.close();
+         throw e;
+      }
+   }
+
+   // Walks the TLV headers and records where each certificate starts
+   private void buildIndex() throws ParseException {
+      final int certTag = CVCTagEnum.CV_CERTIFICATE.getValue();
+      long position = 0;
+      while( position<fileSize ){
+         final ByteBuffer segment = segments[(int)(position / SEGMENT_SIZE)];
+         final int start = (int)(position % SEGMENT_SIZE);
+         int pos = start;
+         final int limit = segment.limit();
+         if( limit-pos<3 ){
+            throw new ParseException("Unexpected end of data at offset " + position);
+         }
+         final int tag = ((segment.get(pos) & 0xFF) << 8) | (segment.get(pos+1) & 0xFF);
+         if( tag!=certTag ){
+            throw new ParseException("Expected " + CVCTagEnum.CV_CERTIFICATE + " at offset " + position + " but found tag " + Integer.toHexString(tag));
+         }
+         pos += 2;
+         int length = segment.get(pos++) & 0xFF;
+         if( length>0x7F ){
+            final int lenBytes = length & 0x7F;
+            if( lenBytes==0 || lenBytes>3 || limit-pos<lenBytes ){
+               throw new ParseException("Invalid length at offset " + position);
+            }
+            length = 0;
+            for( int i=0; i<lenBytes; i++ ){
+               length = (length << 8) | (segment.get(pos++) & 0xFF);
+            }
+         }
+         if( length>limit-pos ){
+            throw new ParseException("Certificate at offset " + position + " is truncated");
+         }
+         addOffset(position);
+         position += pos + length - start;
+      }
+   }
+
+   private void addOffset(final long offset) {
+      if( intOffsets!=null ){
+         if( count==intOffsets.length ){
+            intOffsets = Arrays.copyOf(intOffsets, count*2);
+         }
+         intOffsets[count++] = (int)offset;
+      }
+      else {
+         if( count==longOffsets.length ){
+            longOffsets = Arrays.copyOf(longOffsets, count*2);
+         }
+         longOffsets[count++] = offset;
+      }
+   }
+
+   private long getOffset(final int index) {
+      if( index<0 || index>=count ){
+         throw new IndexOutOfBoundsException("Index " + index + " with " + count + " certificates");
+      }
+      return intOffsets!=null ? intOffsets[index] : longOffsets[index];
+   }
+
+   /**
+    * Returns the number of certificates in the archive
+    * @return
+    */
+   public int size() {
+      return count;
+   }
+
+   /**
+    * Returns a read-only view of the encoded certificate, positioned at its first byte
+    * @param index
+    * @return
+    */
+   public ByteBuffer getBuffer(final int index) {
+      final long offset = getOffset(index);
+      final long end = index+1<count ? getOffset(index+1) : fileSize;
+      final int start = (int)(offset % SEGMENT_SIZE);
+      final ByteBuffer view = segments[(int)(offset / SEGMENT_SIZE)].asReadOnlyBuffer();
+      view.limit(start + (int)(end - offset));
+      view.position(start);
+      return view;
+   }
+
+   /**
+    * Returns a copy of the encoded certificate
+    * @param index
+    * @return
+    */
+   public byte[] getEncoded(final int index) {
+      final ByteBuffer view = getBuffer(index);
+      final byte[] result = new byte[view.remaining()];
+      view.get(result);
+      return result;
+   }
+
+   /**
+    * Decodes a certificate
+    * @param index
+    * @return
+    */
+   public CVCertificate get(final int index) throws ParseException, ConstructionException {
+      // The copy is owned by the certificate
+      final byte[] encoded = getEncoded(index);
+      return CertificateParser.parseCertificate(encoded, 0, encoded.length);
+   }
+
+   /**
+    * Decodes all certificates, in order, as they are pulled from the returned stream
+    * @param parallel
+    * @return
+    * @see CertificateParser#parseAll(java.util.Spliterator, boolean)
+    */
+   public Stream<ParseResult> stream(final boolean parallel) {
+      return CertificateParser.parseAll(IntStream.range(0, count).mapToObj(this::getEncoded).spliterator(), parallel);
+   }
+
+   /**
+    * Closes the file. The mapping is released when the archive has been garbage collected.
+    */
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+
+}
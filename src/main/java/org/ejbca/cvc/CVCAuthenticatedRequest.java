@@ -12,9 +12,6 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -87,22 +84,16 @@ public class CVCAuthenticatedRequest extends AbstractSequence implements Signabl
          // The TBS for an authenticated request is from ECA 1.11 
     	 // "The signature SHALL be created over the concatenation of the encoded CV Certificate
     	 // and the encoded Certification Authority Reference (i.e. both including tag and length)."
-         ByteArrayOutputStream bout = new ByteArrayOutputStream();
-         DataOutputStream dout = new DataOutputStream(bout);
     	 CVCertificate cert = getRequest();
-    	 cert.encode(dout);
     	 CAReferenceField caref = getAuthorityReference();
-    	 caref.encode(dout);
-    	 dout.close();
-    	 byte[] res = bout.toByteArray();
+    	 // Both lengths are known up front, so encode directly into one array
+    	 byte[] res = new byte[cert.getEncodedLength() + caref.getEncodedLength()];
+    	 caref.encodeTo(res, cert.encodeTo(res, 0));
     	 return res;
       }
       catch( NoSuchFieldException e ){
          throw new ConstructionException(e);
       }
-      catch( IOException e ){
-         throw new ConstructionException(e);
-      }
    }
 
    /**
@@ -155,13 +146,15 @@ public class CVCAuthenticatedRequest extends AbstractSequence implements Signabl
             CVCPublicKey cvcKey = getRequest().getCertificateBody().getPublicKey();
             algorithm = AlgorithmUtil.getAlgorithmName(cvcKey.getObjectIdentifier());
          }
-         Signature sign = Signature.getInstance(algorithm, BouncyCastleProvider.PROVIDER_NAME);
+         byte[] signature = getSignature();
+         String plainAlgorithm = PlainECDSA.getPlainAlgorithm(algorithm, BouncyCastleProvider.PROVIDER_NAME, pubKey, signature);
+         Signature sign = SignatureCache.getSignature(plainAlgorithm!=null ? plainAlgorithm : algorithm, BouncyCastleProvider.PROVIDER_NAME);
          
          // Now verify the signature
          sign.initVerify(pubKey);
          sign.update(getTBS());
-         // Now convert the CVC signature to a X9.62 signature
-         byte[] sig = BCECUtil.convertCVCSigToX962(algorithm, getSignature());
+         // Unless the provider accepts plain signatures, convert the CVC signature to a X9.62 signature
+         byte[] sig = plainAlgorithm!=null ? signature : BCECUtil.convertCVCSigToX962(algorithm, signature);
          if( !sign.verify(sig) ){
             throw new SignatureException("Signature verification failed!");
          }
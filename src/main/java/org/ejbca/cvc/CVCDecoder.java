@@ -0,0 +1,304 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.io.IOException;
+
+import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Decodes DER-encoded CVC objects within configurable limits, for input that
+ * can not be trusted, e.g. requests received from terminals:
+ * <pre>
+ *    CVCDecoder decoder = CVCDecoder.DEFAULT.withMaxTotalLength(4096).withTrailingData(false);
+ *    CVCertificate cert = decoder.decodeCertificate(data);
+ * </pre>
+ * The input is walked once: every tag must be known in its sequence, every length must
+ * fit exactly within the enclosing object, and the limits on total size, field size and
+ * nesting depth are enforced as each header is read, before the value is decoded.
+ * The total size is checked before anything else. Data fields reference the value bytes
+ * in place. Use check() to validate input without creating any objects.
+ * <p>
+ * Instances are immutable and thread safe. CertificateParser uses DEFAULT.
+ *
+ * @version $Id$
+ */
+public final class CVCDecoder {
+
+   /** Nesting depth of the limits in DEFAULT. An authenticated request for a certificate
+    *  with extensions has six levels, counting the fields in the discretionary data templates. */
+   public static final int DEFAULT_MAX_DEPTH = 8;
+
+   /** Decoder that accepts anything the parser can represent, and ignores trailing data */
+   public static final CVCDecoder DEFAULT = new CVCDecoder(Integer.MAX_VALUE, CVCIncrementalDecoder.MAX_LENGTH, DEFAULT_MAX_DEPTH, true);
+
+   private final int maxTotalLength;
+   private final int maxFieldLength;
+   private final int maxDepth;
+   private final boolean trailingData;
+
+   private CVCDecoder(final int maxTotalLength, final int maxFieldLength, final int maxDepth, final boolean trailingData) {
+      if( maxTotalLength<0 || maxFieldLength<0 || maxDepth<1 ){
+         throw new IllegalArgumentException("Limits must be positive");
+      }
+      this.maxTotalLength = maxTotalLength;
+      this.maxFieldLength = maxFieldLength;
+      this.maxDepth = maxDepth;
+      this.trailingData = trailingData;
+   }
+
+   /**
+    * Returns a decoder that rejects objects longer than 'maxTotalLength' bytes, including tag and length
+    * @param maxTotalLength
+    * @return
+    */
+   public CVCDecoder withMaxTotalLength(final int maxTotalLength) {
+      return new CVCDecoder(maxTotalLength, maxFieldLength, maxDepth, trailingData);
+   }
+
+   /**
+    * Returns a decoder that rejects data fields with more than 'maxFieldLength' value bytes
+    * @param maxFieldLength
+    * @return
+    */
+   public CVCDecoder withMaxFieldLength(final int maxFieldLength) {
+      return new CVCDecoder(maxTotalLength, maxFieldLength, maxDepth, trailingData);
+   }
+
+   /**
+    * Returns a decoder that rejects objects nested more than 'maxDepth' levels,
+    * where the outermost object is at level 1
+    * @param maxDepth
+    * @return
+    */
+   public CVCDecoder withMaxDepth(final int maxDepth) {
+      return new CVCDecoder(maxTotalLength, maxFieldLength, maxDepth, trailingData);
+   }
+
+   /**
+    * Returns a decoder that ignores bytes following the object if 'trailingData' is true,
+    * or else rejects them
+    * @param trailingData
+    * @return
+    */
+   public CVCDecoder withTrailingData(final boolean trailingData) {
+      return new CVCDecoder(maxTotalLength, maxFieldLength, maxDepth, trailingData);
+   }
+
+   public int getMaxTotalLength() {
+      return maxTotalLength;
+   }
+
+   public int getMaxFieldLength() {
+      return maxFieldLength;
+   }
+
+   public int getMaxDepth() {
+      return maxDepth;
+   }
+
+   public boolean isTrailingDataAllowed() {
+      return trailingData;
+   }
+
+   /**
+    * Checks the structure of a DER-encoded CVCObject against the limits, without creating any objects
+    * @param data
+    * @param offset start of the DER-encoded object
+    * @param length number of available bytes
+    * @return number of bytes in the object
+    * @throws ParseException if the object is malformed or exceeds a limit
+    */
+   public int check(final byte[] data, final int offset, final int length) throws ParseException {
+      final TLVReader reader = new TLVReader(data, offset, length);
+      check(reader, null);
+      return reader.getPosition() - offset;
+   }
+
+   /**
+    * Decodes a DER-encoded byte array containing any CVCObject
+    * @param data
+    * @return
+    */
+   public CVCObject decode(final byte[] data) throws ParseException, ConstructionException {
+      return decode(data, 0, data.length);
+   }
+
+   /**
+    * Decodes a CVCObject from a region of a byte array
+    * @param data
+    * @param offset start of the DER-encoded object
+    * @param length number of available bytes
+    * @return
+    */
+   public CVCObject decode(final byte[] data, final int offset, final int length) throws ParseException, ConstructionException {
+      return decode(new TLVReader(data, offset, length), null);
+   }
+
+   /**
+    * Decodes a DER-encoded byte array containing a CVCertificate
+    * @param data
+    * @return
+    */
+   public CVCertificate decodeCertificate(final byte[] data) throws ParseException, ConstructionException {
+      return decodeCertificate(data, 0, data.length);
+   }
+
+   /**
+    * Decodes a CVCertificate from a region of a byte array
+    * @param data
+    * @param offset start of the DER-encoded certificate
+    * @param length number of available bytes
+    * @return
+    */
+   public CVCertificate decodeCertificate(final byte[] data, final int offset, final int length) throws ParseException, ConstructionException {
+      return (CVCertificate)decode(new TLVReader(data, offset, length), CVCTagEnum.CV_CERTIFICATE);
+   }
+
+   // Decodes the object at the reader's position, enforcing the limits in the same pass
+   CVCObject decode(final TLVReader reader, final CVCTagEnum expectedTag) throws ParseException, ConstructionException {
+      final int start = reader.getPosition();
+      final int limit = reader.getEnd();
+      final CVCTagEnum tag = TagTable.ALL.find(reader.readTag(limit));
+      if( expectedTag!=null && tag!=expectedTag ){
+         throw new ParseException("Expected first tag " + expectedTag + " but found " + tag);
+      }
+      final int length = reader.readLength(limit);
+      final int total = reader.getPosition() - start + length;
+      if( total>maxTotalLength ){
+         throw new ParseException("Length " + total + " exceeds the maximum of " + maxTotalLength);
+      }
+      final CVCObject result;
+      try {
+         result = decodeValue(reader, start, tag, length, 1);
+      }
+      catch( IOException e ){
+         throw new ParseException(e);
+      }
+      if( !trailingData && reader.getPosition()!=limit ){
+         throw new ParseException((limit - reader.getPosition()) + " bytes of trailing data after " + tag);
+      }
+      return result;
+   }
+
+   // Walks the TLV headers of the object at the reader's position and leaves the reader after it
+   private void check(final TLVReader reader, final CVCTagEnum expectedTag) throws ParseException {
+      final int start = reader.getPosition();
+      final int limit = reader.getEnd();
+      final CVCTagEnum tag = TagTable.ALL.find(reader.readTag(limit));
+      if( expectedTag!=null && tag!=expectedTag ){
+         throw new ParseException("Expected first tag " + expectedTag + " but found " + tag);
+      }
+      final int length = reader.readLength(limit);
+      final int total = reader.getPosition() - start + length;
+      if( total>maxTotalLength ){
+         throw new ParseException("Length " + total + " exceeds the maximum of " + maxTotalLength);
+      }
+      checkValue(reader, tag, length, 1);
+      if( !trailingData && reader.getPosition()!=limit ){
+         throw new ParseException((limit - reader.getPosition()) + " bytes of trailing data after " + tag);
+      }
+   }
+
+   // Checks the value of a TLV whose tag and length have been read
+   private void checkValue(final TLVReader reader, final CVCTagEnum tag, final int length, final int depth) throws ParseException {
+      if( depth>maxDepth ){
+         throw new ParseException(tag + " is nested deeper than the maximum of " + maxDepth);
+      }
+      if( tag.isSequence() ){
+         final int sequenceEnd = reader.getPosition() + length;
+         final TagTable nestedTags = getNestedTags(tag, reader, sequenceEnd);
+         while( reader.getPosition() < sequenceEnd ){
+            final CVCTagEnum fieldTag = nestedTags.find(reader.readTag(sequenceEnd));
+            checkValue(reader, fieldTag, reader.readLength(sequenceEnd), depth + 1);
+         }
+      }
+      else {
+         if( length>maxFieldLength ){
+            throw new ParseException("Length " + length + " of " + tag + " exceeds the maximum of " + maxFieldLength);
+         }
+         reader.skip(length);
+      }
+   }
+
+   // Returns the tags for the subfields of a sequence, where any ambiguous tag values are resolved
+   private static TagTable getNestedTags(final CVCTagEnum sequenceTag, final TLVReader reader, final int sequenceEnd) throws ParseException {
+      if( sequenceTag==CVCTagEnum.PUBLIC_KEY ){
+         // EXPONENT and COEFFICIENT_A have the same value, so it depends on the key's OID
+         final TagTable keyTags = TagTable.forPublicKey(reader, sequenceEnd);
+         if( keyTags==null ){
+            throw new ParseException("Missing or unknown public key OID");
+         }
+         return keyTags;
+      }
+      return TagTable.forSequence(sequenceTag);
+   }
+
+   // Decodes a TLV inside a sequence. Tag values are looked up in 'tags', which
+   // depends on the enclosing sequence.
+   private CVCObject decode(final TLVReader reader, final int limit, final TagTable tags, final int depth)
+   throws IOException, ConstructionException, ParseException {
+      final int start = reader.getPosition();
+      final CVCTagEnum tag = tags.find(reader.readTag(limit));
+      final int length = reader.readLength(limit);
+      return decodeValue(reader, start, tag, length, depth);
+   }
+
+   // Decodes the value of a TLV whose tag and length have been read
+   private CVCObject decodeValue(final TLVReader reader, final int start, final CVCTagEnum tag, final int length, final int depth)
+   throws IOException, ConstructionException, ParseException {
+      if( depth>maxDepth ){
+         throw new ParseException(tag + " is nested deeper than the maximum of " + maxDepth);
+      }
+      if( tag.isSequence() ){
+         final int sequenceEnd = reader.getPosition() + length;
+
+         // Create correct instance of AbstractSequence
+         final TagTable nestedTags = getNestedTags(tag, reader, sequenceEnd);
+         final AbstractSequence sequence;
+         if( nestedTags==TagTable.EC_PUBLIC_KEY ){
+            // The OID decides which kind of key to create, so that the
+            // subfields can be added directly to it
+            sequence = new PublicKeyEC();
+         }
+         else if( nestedTags==TagTable.RSA_PUBLIC_KEY ){
+            sequence = new PublicKeyRSA();
+         }
+         else {
+            sequence = SequenceFactory.createSequence(tag);
+         }
+
+         // Add this sequence's subfields through recursion
+         while( reader.getPosition() < sequenceEnd ) {
+            sequence.addSubfield(decode(reader, sequenceEnd, nestedTags, depth + 1));
+         }
+         if( sequence instanceof CVCPublicKey ){
+            ((CVCPublicKey)sequence).decodingComplete();
+         }
+         // Keep the exact bytes so that they need not be re-encoded
+         sequence.setEncoded(reader.getBuffer(), start, sequenceEnd - start);
+         return sequence;
+      }
+      else {
+         if( length>maxFieldLength ){
+            throw new ParseException("Length " + length + " of " + tag + " exceeds the maximum of " + maxFieldLength);
+         }
+         // A data field, referencing the value bytes in place
+         final int offset = reader.getPosition();
+         reader.skip(length);
+         return FieldFactory.decodeField(tag, reader.getBuffer(), offset, length);
+      }
+   }
+
+}
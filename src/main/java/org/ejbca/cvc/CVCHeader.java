@@ -0,0 +1,222 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.nio.charset.StandardCharsets;
+
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * The routing information of a DER-encoded CVCertificate or CVCAuthenticatedRequest,
+ * read without parsing it. Only the certificate body and the authorization template
+ * are entered; the public key, the signatures and any extensions are skipped by
+ * their lengths, and no CVCObjects are created.
+ * <p>
+ * Fields that are absent are returned as null, or as -1 for the role and the dates.
+ *
+ * @version $Id$
+ */
+public final class CVCHeader {
+
+   // The role is stored in the two most significant bits of the first byte
+   private static final int ROLE_MASK = 0xC0;
+
+   private static final int TAG_REQ_AUTHENTICATION = CVCTagEnum.REQ_AUTHENTICATION.getValue();
+   private static final int TAG_CV_CERTIFICATE     = CVCTagEnum.CV_CERTIFICATE.getValue();
+   private static final int TAG_CERTIFICATE_BODY   = CVCTagEnum.CERTIFICATE_BODY.getValue();
+   private static final int TAG_CA_REFERENCE       = CVCTagEnum.CA_REFERENCE.getValue();
+   private static final int TAG_HOLDER_REFERENCE   = CVCTagEnum.HOLDER_REFERENCE.getValue();
+   private static final int TAG_AUTH_TEMPLATE      = CVCTagEnum.HOLDER_AUTH_TEMPLATE.getValue();
+   private static final int TAG_ROLE_AND_RIGHTS    = CVCTagEnum.ROLE_AND_ACCESS_RIGHTS.getValue();
+   private static final int TAG_EFFECTIVE_DATE     = CVCTagEnum.EFFECTIVE_DATE.getValue();
+   private static final int TAG_EXPIRATION_DATE    = CVCTagEnum.EXPIRATION_DATE.getValue();
+
+   private boolean authenticatedRequest;
+   private String outerAuthorityReference;
+   private String authorityReference;
+   private String holderReference;
+   private int role = -1;
+   private long effectiveDate = -1;
+   private long expirationDate = -1;
+
+   private CVCHeader() {
+   }
+
+   /**
+    * Reads the routing information from a DER-encoded CVCertificate or CVCAuthenticatedRequest
+    * @param data
+    * @return
+    * @throws ParseException if the data is not a certificate or an authenticated request
+    */
+   public static CVCHeader peek(final byte[] data) throws ParseException {
+      return peek(data, 0, data.length);
+   }
+
+   /**
+    * Reads the routing information from a region of a byte array
+    * @param data
+    * @param offset
+    * @param length
+    * @return
+    * @throws ParseException if the data is not a certificate or an authenticated request
+    */
+   public static CVCHeader peek(final byte[] data, final int offset, final int length) throws ParseException {
+      final TLVReader reader = new TLVReader(data, offset, length);
+      final CVCHeader header = new CVCHeader();
+      final int limit = reader.getEnd();
+      final int tag = reader.readTag(limit);
+      final int end = reader.readLength(limit) + reader.getPosition();
+      if( tag==TAG_REQ_AUTHENTICATION ){
+         header.authenticatedRequest = true;
+         while( reader.getPosition()<end ){
+            final int fieldTag = reader.readTag(end);
+            final int fieldEnd = reader.readLength(end) + reader.getPosition();
+            if( fieldTag==TAG_CV_CERTIFICATE ){
+               header.readCertificate(reader, fieldEnd);
+            }
+            else if( fieldTag==TAG_CA_REFERENCE ){
+               header.outerAuthorityReference = readString(reader, fieldEnd);
+            }
+            reader.setPosition(fieldEnd);
+         }
+      }
+      else if( tag==TAG_CV_CERTIFICATE ){
+         header.readCertificate(reader, end);
+      }
+      else {
+         throw new ParseException("Expected " + CVCTagEnum.CV_CERTIFICATE + " or " + CVCTagEnum.REQ_AUTHENTICATION
+               + " but found tag " + Integer.toHexString(tag));
+      }
+      return header;
+   }
+
+   // Finds the body, skipping the signature
+   private void readCertificate(final TLVReader reader, final int end) throws ParseException {
+      while( reader.getPosition()<end ){
+         final int tag = reader.readTag(end);
+         final int fieldEnd = reader.readLength(end) + reader.getPosition();
+         if( tag==TAG_CERTIFICATE_BODY ){
+            readBody(reader, fieldEnd);
+         }
+         reader.setPosition(fieldEnd);
+      }
+   }
+
+   private void readBody(final TLVReader reader, final int end) throws ParseException {
+      while( reader.getPosition()<end ){
+         final int tag = reader.readTag(end);
+         final int length = reader.readLength(end);
+         final int fieldEnd = reader.getPosition() + length;
+         if( tag==TAG_CA_REFERENCE ){
+            authorityReference = readString(reader, fieldEnd);
+         }
+         else if( tag==TAG_HOLDER_REFERENCE ){
+            holderReference = readString(reader, fieldEnd);
+         }
+         else if( tag==TAG_AUTH_TEMPLATE ){
+            readAuthTemplate(reader, fieldEnd);
+         }
+         else if( tag==TAG_EFFECTIVE_DATE ){
+            effectiveDate = readDate(reader, length) * DateField.MILLIS_PER_DAY;
+         }
+         else if( tag==TAG_EXPIRATION_DATE ){
+            expirationDate = readDate(reader, length) * DateField.MILLIS_PER_DAY + DateField.END_OF_DAY_MILLIS;
+         }
+         reader.setPosition(fieldEnd);
+      }
+   }
+
+   private void readAuthTemplate(final TLVReader reader, final int end) throws ParseException {
+      while( reader.getPosition()<end ){
+         final int tag = reader.readTag(end);
+         final int length = reader.readLength(end);
+         if( tag==TAG_ROLE_AND_RIGHTS && length>0 ){
+            role = reader.getBuffer()[reader.getPosition()] & ROLE_MASK;
+         }
+         reader.skip(length);
+      }
+   }
+
+   private static String readString(final TLVReader reader, final int end) {
+      final int start = reader.getPosition();
+      return new String(reader.getBuffer(), start, end - start, StandardCharsets.ISO_8859_1);
+   }
+
+   private static long readDate(final TLVReader reader, final int length) throws ParseException {
+      if( length!=6 ){
+         throw new ParseException("Date must have length 6, was " + length);
+      }
+      return DateField.decodeEpochDay(reader.getBuffer(), reader.getPosition());
+   }
+
+   /**
+    * Returns true if the data was a CVCAuthenticatedRequest
+    * @return
+    */
+   public boolean isAuthenticatedRequest() {
+      return authenticatedRequest;
+   }
+
+   /**
+    * Returns the outer 'Certificate Authority Reference' of an authenticated request,
+    * or else the one in the certificate body
+    * @return
+    */
+   public String getAuthorityReference() {
+      return outerAuthorityReference!=null ? outerAuthorityReference : authorityReference;
+   }
+
+   /**
+    * Returns the 'Certificate Authority Reference' in the certificate body
+    * @return
+    */
+   public String getBodyAuthorityReference() {
+      return authorityReference;
+   }
+
+   /**
+    * Returns the 'Certificate Holder Reference'
+    * @return
+    */
+   public String getHolderReference() {
+      return holderReference;
+   }
+
+   /**
+    * Returns the role bits of 'Role and access rights', which are the same as
+    * AuthorizationRole.getValue() for the role
+    * @return
+    */
+   public int getRole() {
+      return role;
+   }
+
+   /**
+    * Returns 'Effective Date' in milliseconds since 1970-01-01 GMT, the same as
+    * DateField.getDate().getTime()
+    * @return
+    */
+   public long getEffectiveDate() {
+      return effectiveDate;
+   }
+
+   /**
+    * Returns 'Expiration Date' in milliseconds since 1970-01-01 GMT, the same as
+    * DateField.getDate().getTime()
+    * @return
+    */
+   public long getExpirationDate() {
+      return expirationDate;
+   }
+
+}
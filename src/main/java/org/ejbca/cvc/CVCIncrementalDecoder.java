@@ -0,0 +1,208 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.nio.ByteBuffer;
+
+import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Decodes CVC objects, e.g. CVCertificate or CVCAuthenticatedRequest, from data
+ * that arrives in arbitrary fragments, such as reads from a non-blocking channel.
+ * The decoder keeps the state of a partially received TLV between calls:
+ * <pre>
+ *    buffer.flip();
+ *    CVCObject obj;
+ *    while( (obj = decoder.decode(buffer))!=null ){
+ *       ...
+ *    }
+ *    buffer.compact();
+ * </pre>
+ * The tag is validated and the length is checked against the limit as soon as
+ * they have arrived, and the value is then collected into an array of the exact
+ * size. Decoded objects do not reference the supplied buffers, which may be reused.
+ * <p>
+ * By default objects of up to DEFAULT_MAX_LENGTH value bytes are accepted, which is
+ * ample for certificates and requests. Complete objects are decoded with a CVCDecoder,
+ * so the limits of one for untrusted input apply when it is given to the constructor.
+ * <p>
+ * Instances are not thread safe. After a ParseException the decoder must be reset
+ * before it is used again.
+ *
+ * @version $Id$
+ */
+public class CVCIncrementalDecoder {
+
+   /** Largest value length that can be expressed with the 3 length bytes accepted by the parser */
+   public static final int MAX_LENGTH = 0xFFFFFF;
+
+   /** Value length accepted by default, so that a peer can not make the decoder reserve much memory */
+   public static final int DEFAULT_MAX_LENGTH = 4096;
+
+   private static final int STATE_TAG     = 0;
+   private static final int STATE_TAG2    = 1;
+   private static final int STATE_LENGTH  = 2;
+   private static final int STATE_LENGTH2 = 3;
+   private static final int STATE_VALUE   = 4;
+
+   private final int maxLength;
+   private final CVCDecoder decoder;
+
+   // Tag and length of the current TLV
+   private final byte[] header = new byte[6];
+   private int headerLength;
+   private int state;
+   private int lengthBytesLeft;
+   private int valueLength;
+
+   // The current TLV, allocated when the length is known
+   private byte[] object;
+   private int objectPosition;
+
+   /**
+    * Constructs a decoder accepting objects with up to DEFAULT_MAX_LENGTH value bytes
+    */
+   public CVCIncrementalDecoder() {
+      this(DEFAULT_MAX_LENGTH);
+   }
+
+   /**
+    * Constructs a decoder that rejects objects having more than 'maxLength' value bytes
+    * @param maxLength
+    */
+   public CVCIncrementalDecoder(final int maxLength) {
+      this(maxLength, CVCDecoder.DEFAULT);
+   }
+
+   /**
+    * Constructs a decoder that decodes complete objects with 'decoder'. Objects longer than
+    * its maximum total length are rejected as soon as the length has arrived.
+    * @param decoder
+    */
+   public CVCIncrementalDecoder(final CVCDecoder decoder) {
+      this(Math.min(decoder.getMaxTotalLength(), MAX_LENGTH), decoder);
+   }
+
+   private CVCIncrementalDecoder(final int maxLength, final CVCDecoder decoder) {
+      if( maxLength<0 || maxLength>MAX_LENGTH ){
+         throw new IllegalArgumentException("maxLength must be between 0 and " + MAX_LENGTH);
+      }
+      this.maxLength = maxLength;
+      this.decoder = decoder;
+   }
+
+   /**
+    * Consumes bytes from 'in' until an object is complete, or until 'in' is empty.
+    * Bytes following a complete object are left in 'in' for the next call.
+    * @param in
+    * @return the decoded object, or null if more data is needed
+    * @throws ParseException if the data is not a valid CVC object, or is too large
+    * @throws ConstructionException
+    */
+   public CVCObject decode(final ByteBuffer in) throws ParseException, ConstructionException {
+      while( in.hasRemaining() ){
+         switch( state ){
+         case STATE_TAG:
+            final int b1 = in.get() & 0xFF;
+            header[headerLength++] = (byte)b1;
+            if( (b1 & 0x1F)==0x1F ){
+               state = STATE_TAG2;
+            }
+            else {
+               tagComplete(b1);
+            }
+            break;
+         case STATE_TAG2:
+            final int b2 = in.get() & 0xFF;
+            header[headerLength++] = (byte)b2;
+            tagComplete(((header[0] & 0xFF) << 8) | b2);
+            break;
+         case STATE_LENGTH:
+            final int len = in.get() & 0xFF;
+            header[headerLength++] = (byte)len;
+            if( len>0x7F ){
+               lengthBytesLeft = len & 0x7F;
+               if( lengthBytesLeft==0 || lengthBytesLeft>3 ){
+                  throw new ParseException("Unsupported number of length bytes: " + lengthBytesLeft);
+               }
+               valueLength = 0;
+               state = STATE_LENGTH2;
+            }
+            else {
+               valueLength = len;
+               lengthComplete();
+            }
+            break;
+         case STATE_LENGTH2:
+            final int lenByte = in.get() & 0xFF;
+            header[headerLength++] = (byte)lenByte;
+            valueLength = (valueLength << 8) | lenByte;
+            if( --lengthBytesLeft==0 ){
+               lengthComplete();
+            }
+            break;
+         default:
+            final int n = Math.min(in.remaining(), object.length - objectPosition);
+            in.get(object, objectPosition, n);
+            objectPosition += n;
+            break;
+         }
+         if( state==STATE_VALUE && objectPosition==object.length ){
+            final byte[] data = object;
+            reset();
+            return decoder.decode(data, 0, data.length);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns true if the decoder holds part of an object
+    * @return
+    */
+   public boolean hasPartialObject() {
+      return state!=STATE_TAG || headerLength>0;
+   }
+
+   /**
+    * Discards any partially received object
+    */
+   public void reset() {
+      state = STATE_TAG;
+      headerLength = 0;
+      object = null;
+      objectPosition = 0;
+   }
+
+   // Rejects unknown tags before any value bytes have been received
+   private void tagComplete(final int tagValue) throws ParseException {
+      CertificateParser.findTagFromValue(tagValue);
+      state = STATE_LENGTH;
+   }
+
+   // Allocates the array holding the complete TLV
+   private void lengthComplete() throws ParseException {
+      if( valueLength>maxLength ){
+         throw new ParseException("Length " + valueLength + " exceeds the maximum of " + maxLength);
+      }
+      if( headerLength + valueLength>decoder.getMaxTotalLength() ){
+         throw new ParseException("Length " + (headerLength + valueLength) + " exceeds the maximum of " + decoder.getMaxTotalLength());
+      }
+      object = new byte[headerLength + valueLength];
+      System.arraycopy(header, 0, object, 0, headerLength);
+      objectPosition = headerLength;
+      state = STATE_VALUE;
+   }
+
+}
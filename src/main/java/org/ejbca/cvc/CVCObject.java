@@ -12,11 +12,11 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.ByteBuffer;
 
 /**
  * Base class for all objects in a CV-certificate
@@ -33,10 +33,6 @@ public abstract class CVCObject implements Serializable {
 
    public static final String NEWLINE = System.getProperty("line.separator");
    
-   private static final int INT_LENGTH  = 4;
-   private static final int LONG_LENGTH = 8;
-   
-
    final private CVCTagEnum tag;
    private AbstractSequence parent;
 
@@ -72,45 +68,135 @@ public abstract class CVCObject implements Serializable {
       this.parent = parent;
    }
 
+   /**
+    * Must be called when the encoding of this object has changed. Drops the 
+    * original encoding kept by the enclosing sequences, if any.
+    */
+   void invalidateEncoding() {
+      if( parent!=null ){
+         parent.invalidateEncoding();
+      }
+   }
+
    /**
     * Writes this object as a DER-encoded byte array to 'out'
     * @return number of written bytes
     */
    protected abstract int encode(DataOutputStream out) throws IOException;
 
+   /**
+    * Returns the number of bytes in the DER-encoding of this object, including tag and length.
+    * Subclasses in this library compute this without encoding; this default implementation
+    * encodes the object through encode(DataOutputStream).
+    * @return
+    */
+   int getEncodedLength() {
+      return encodeToStream().length;
+   }
 
    /**
-    * DER-encodes field length according to ITU-T X.690.
+    * Writes the DER-encoding of this object to 'out' starting at 'pos'. The array must have room 
+    * for getEncodedLength() bytes, and getEncodedLength() must have been called since this object 
+    * or any of its subfields were last modified.
+    * @param out
+    * @param pos
+    * @return the position following the last written byte
+    */
+   int encodeTo(final byte[] out, final int pos) {
+      final byte[] der = encodeToStream();
+      System.arraycopy(der, 0, out, pos, der.length);
+      return pos + der.length;
+   }
+
+   // Fallback for subclasses that only implement encode(DataOutputStream)
+   private byte[] encodeToStream() {
+      try {
+         final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+         final DataOutputStream dout = new DataOutputStream(bout);
+         encode(dout);
+         dout.close();
+         return bout.toByteArray();
+      }
+      catch( IOException e ){
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Returns the number of bytes needed for a tag value
+    * @param tag
+    * @return
+    */
+   static int getTagLength(final int tag) {
+      return tag>0xFF ? 2 : 1;
+   }
+
+   /**
+    * Writes a tag value, using one or two bytes
+    * @param out
+    * @param pos
+    * @param tag
+    * @return the position following the tag
+    */
+   static int writeTag(final byte[] out, int pos, final int tag) {
+      if( tag>0xFF ){
+         out[pos++] = (byte)(tag >> 8);
+      }
+      out[pos++] = (byte)tag;
+      return pos;
+   }
+
+   /**
+    * Returns the number of bytes needed for a DER-encoded length value
     * @param lenValue
     * @return
     */
-   protected static byte[] encodeLength(final int lenValue){
-      byte lenBytes = 0;
-      if( lenValue>0x7F ){
-         // Assume that one byte is sufficient for representing the length
-         lenBytes = 1;
-         if( lenValue>0xFF ) {
-            // No, two bytes is required (assuming that the length is always <= 65535)
-            lenBytes = 2;
-         }
+   static int getLengthLength(final int lenValue) {
+      if( lenValue<=0x7F ){
+         return 1;
+      }
+      else if( lenValue<=0xFF ){
+         return 2;
       }
-      final ByteBuffer bb = ByteBuffer.allocate(1 + lenBytes);
+      else if( lenValue<=0xFFFF ){
+         return 3;
+      }
+      return 4;
+   }
+
+   /**
+    * Writes a DER-encoded length value according to ITU-T X.690
+    * @param out
+    * @param pos
+    * @param lenValue
+    * @return the position following the length
+    */
+   static int writeLength(final byte[] out, int pos, final int lenValue) {
+      final int lenBytes = getLengthLength(lenValue) - 1;
       if( lenBytes==0 ){
          // One byte is enough - write the length value directly
-         bb.put(0, (byte)lenValue);
+         out[pos++] = (byte)lenValue;
       }
       else {
          // First write down how many bytes the length value requires.
          // This is done by setting the MSB + bitmap representing the actual length
-         bb.put(0, (byte)(0x80 + lenBytes));
-         if( lenBytes==1 ) {
-            bb.put(1, (byte)lenValue);
-         }
-         else {
-            bb.putShort(1, (short)lenValue);
+         out[pos++] = (byte)(0x80 + lenBytes);
+         for( int i=lenBytes-1; i>=0; i-- ){
+            out[pos++] = (byte)(lenValue >> (8*i));
          }
       }
-      return bb.array();
+      return pos;
+   }
+
+   /**
+    * DER-encodes field length according to ITU-T X.690.
+    * @param lenValue
+    * @return
+    */
+   protected static byte[] encodeLength(final int lenValue){
+      final byte[] result = new byte[getLengthLength(lenValue)];
+      writeLength(result, 0, lenValue);
+      return result;
    }
 
 
@@ -118,24 +204,22 @@ public abstract class CVCObject implements Serializable {
     * Reads and decodes a DER-encoded length value
     * @param in
     * @return
+    * @throws IOException if the stream ends or the length has more than 3 length bytes
     */
    protected static int decodeLength(final DataInputStream in) throws IOException {
-      int lenBytes = 1;
-      int length = 0;
-      final int b1 = in.read();
-      if( b1>0x7F ) {  // If the MSB is set then the number of bytes is stored here
-         lenBytes = b1 & 0xF;
-         if( lenBytes==1 ) {
-            length = in.readUnsignedByte();
-         }
-         else {
-            // Assumption: lenBytes = 2 (theoretically it could be longer but hardly in a CV-certificate)
-            length = in.readShort();
-         }
+      final int b1 = in.readUnsignedByte();
+      if( b1<=0x7F ) {
+         // The MSB isn't set so the length can be read directly from the current byte
+         return b1;
       }
-      else {
-         // No, the MSB wasn't set so the length can be read directly from the current byte
-         length = b1;
+      // The MSB is set so the number of length bytes is stored here
+      final int lenBytes = b1 & 0x7F;
+      if( lenBytes==0 || lenBytes>3 ) {
+         throw new IOException("Unsupported number of length bytes: " + lenBytes);
+      }
+      int length = 0;
+      for( int i=0; i<lenBytes; i++ ) {
+         length = (length << 8) | in.readUnsignedByte();
       }
       return length;
    }
@@ -147,9 +231,7 @@ public abstract class CVCObject implements Serializable {
     * @see #trimByteArray(byte[])
     */
    protected static byte[] toByteArray(final Integer intVal) {
-      final ByteBuffer bb = ByteBuffer.allocate(INT_LENGTH);
-      bb.putInt(intVal);
-      return trimByteArray(bb.array());
+      return toByteArray(intVal.longValue() & 0xFFFFFFFFL);
    }
 
    /**
@@ -159,9 +241,23 @@ public abstract class CVCObject implements Serializable {
     * @see #trimByteArray(byte[])
     */
    protected static byte[] toByteArray(Long longVal) {
-      final ByteBuffer bb = ByteBuffer.allocate(LONG_LENGTH);
-      bb.putLong(longVal);
-      return trimByteArray(bb.array());
+      final long value = longVal;
+      final byte[] result = new byte[getTrimmedLength(value)];
+      for( int i=0; i<result.length; i++ ){
+         result[i] = (byte)(value >>> (8*(result.length-1-i)));
+      }
+      return result;
+   }
+
+   /**
+    * Returns the length of the trimmed byte array representing 'value', 
+    * that is at least one byte.
+    * @param value
+    * @return
+    * @see #trimByteArray(byte[])
+    */
+   static int getTrimmedLength(final long value) {
+      return value==0 ? 1 : (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
    }
 
    /**
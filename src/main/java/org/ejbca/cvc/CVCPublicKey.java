@@ -13,6 +13,7 @@
 package org.ejbca.cvc;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.PublicKey;
 
 import org.ejbca.cvc.exception.ConstructionException;
@@ -32,6 +33,27 @@ public abstract class CVCPublicKey extends AbstractSequence implements PublicKey
         super(CVCTagEnum.PUBLIC_KEY);
     }
 
+    /**
+     * Called by the parser when all subfields have been added
+     * 
+     * @throws ConstructionException if a mandatory subfield is missing
+     */
+    abstract void decodingComplete() throws ConstructionException;
+
+    /**
+     * Throws if a mandatory subfield is missing
+     * 
+     * @param tag
+     * @throws ConstructionException
+     */
+    void checkSubfield(CVCTagEnum tag) throws ConstructionException {
+        try {
+            getSubfield(tag);
+        } catch (NoSuchFieldException e) {
+            throw new ConstructionException(e);
+        }
+    }
+
     // Implements java.security.PublicKey
     public byte[] getEncoded() {
         byte[] data = null;
@@ -52,6 +74,16 @@ public abstract class CVCPublicKey extends AbstractSequence implements PublicKey
         return (OIDField) getSubfield(CVCTagEnum.OID);
     }
 
+    /**
+     * Converts the data of a ByteField to a positive BigInteger without copying it
+     * 
+     * @param field
+     * @return
+     */
+    static BigInteger toPositiveBigInteger(ByteField field) {
+        return new BigInteger(1, field.getDataBuffer(), field.getDataOffset(), field.getDataLength());
+    }
+
     /**
      * Sets an Object Identifier. Can be used to override an algorithm OID for example:
      *   cvcNewPubKey.setObjectIdentifier(cvcOldPubKey.getObjectIdentifier());
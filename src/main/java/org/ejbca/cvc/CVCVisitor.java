@@ -0,0 +1,53 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+/**
+ * Callback interface for walking a DER-encoded CVC structure without building
+ * any object tree. Events are emitted in encoding order by
+ * {@link CertificateParser#visit(byte[], int, int, CVCVisitor)}.
+ * <p>
+ * Tags are resolved the same way as when parsing objects, so e.g. 0x82 is
+ * reported as COEFFICIENT_A in an EC public key and as EXPONENT in an RSA key.
+ * <p>
+ * Value bytes are passed as a region of the parsed array. They must not be
+ * modified, and must be copied if they are needed after the callback returns.
+ *
+ * @version $Id$
+ */
+public interface CVCVisitor {
+
+   /**
+    * Called when a sequence starts
+    * @param tag
+    * @param length number of value bytes in the sequence
+    * @return true to visit the subfields, false to skip them. endSequence() is called in both cases.
+    */
+   boolean startSequence(CVCTagEnum tag, int length);
+
+   /**
+    * Called when a sequence ends
+    * @param tag
+    */
+   void endSequence(CVCTagEnum tag);
+
+   /**
+    * Called for each data field
+    * @param tag
+    * @param buffer array holding the value
+    * @param offset start of the value
+    * @param length number of value bytes
+    */
+   void primitive(CVCTagEnum tag, byte[] buffer, int offset, int length);
+
+}
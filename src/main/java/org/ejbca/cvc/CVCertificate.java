@@ -131,13 +131,15 @@ public class CVCertificate extends AbstractSequence implements Signable {
               oid = getCertificateBody().getPublicKey().getObjectIdentifier();
           }
          String algorithm = AlgorithmUtil.getAlgorithmName(oid);              
-         Signature sign = Signature.getInstance(algorithm, provider);
+         byte[] signature = getSignature();
+         String plainAlgorithm = PlainECDSA.getPlainAlgorithm(algorithm, provider, key, signature);
+         Signature sign = SignatureCache.getSignature(plainAlgorithm!=null ? plainAlgorithm : algorithm, provider);
          
          // Verify the signature
          sign.initVerify(key);
-         sign.update(getTBS());
-         // Now convert the CVC signature to a X9.62 signature
-         byte[] sig = BCECUtil.convertCVCSigToX962(algorithm, getSignature());
+         getCertificateBody().updateSignature(sign);
+         // Unless the provider accepts plain signatures, convert the CVC signature to a X9.62 signature
+         byte[] sig = plainAlgorithm!=null ? signature : BCECUtil.convertCVCSigToX962(algorithm, signature);
          if( !sign.verify(sig) ){
             throw new SignatureException("Signature verification failed!");
          }
@@ -145,7 +147,7 @@ public class CVCertificate extends AbstractSequence implements Signable {
       catch( NoSuchFieldException e ){
          throw new CertificateException("CV-Certificate is corrupt", e);
       }
-      catch( ConstructionException e ){
+      catch( IOException e ){
          throw new CertificateException("CV-Certificate is corrupt", e);
       }
    }
@@ -45,6 +45,19 @@ public class CVCertificateBody extends AbstractSequence {
       return allowedFields;
    }
 
+   /**
+    * Also makes an EC public key decide again which fields to encode, since that 
+    * depends on the role in this body
+    */
+   @Override
+   void invalidateEncoding() {
+      final CVCObject publicKey = getOptionalSubfield(CVCTagEnum.PUBLIC_KEY);
+      if( publicKey instanceof PublicKeyEC ){
+         ((PublicKeyEC)publicKey).resetEncodableSlots();
+      }
+      super.invalidateEncoding();
+   }
+
    /**
     * Creates an empty instance
     */
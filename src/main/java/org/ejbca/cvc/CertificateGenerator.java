@@ -14,6 +14,7 @@ package org.ejbca.cvc;
 
 import java.io.IOException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -24,6 +25,7 @@ import java.security.SignatureException;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import org.ejbca.cvc.exception.ConstructionException;
 import org.ejbca.cvc.util.BCECUtil;
@@ -121,18 +123,69 @@ public final class CertificateGenerator {
       
       CVCertificate cvc = new CVCertificate(body);
       
-      // Perform signing
-      Signature signature = Signature.getInstance(AlgorithmUtil.convertAlgorithmNameToCVC(algorithmName), provider);
-      signature.initSign(signerKey);
-      signature.update(cvc.getTBS());
-      byte[] signdata = signature.sign();
-      
-      // Now convert the X9.62 signature to a CVC signature
-      byte[] sig = BCECUtil.convertX962SigToCVC(algorithmName, signdata);
-      // Save the signature and return the certificate
-      cvc.setSignature(sig);
+      // Perform signing, save the signature and return the certificate
+      cvc.setSignature(sign(signerKey, algorithmName, cvc.getTBS(), provider, false));
       return cvc;
    }
+
+   /**
+    * Generates a CVCertificate from a body, optionally computing the digest of the body
+    * locally and having the provider sign only the digest. This is useful with network-attached
+    * HSMs, which then receive a digest instead of the whole body.
+    * <p>
+    * With 'hashLocally' the digest is computed with the most preferred provider of the digest
+    * algorithm, and signed with NONEwithECDSA or, over a DigestInfo, with NONEwithRSA by 'provider'.
+    * RSA-PSS algorithms are always signed in full.
+    * @param signerKey
+    * @param algorithmName SHA256WithECDSA, SHA1WithRSA etc
+    * @param body
+    * @param provider
+    * @param hashLocally true to only pass the digest of the body to the provider
+    * @return
+    */
+   public static CVCertificate createCertificate(
+         PrivateKey             signerKey,
+         String                 algorithmName,
+         CVCertificateBody      body,
+         String                 provider,
+         boolean                hashLocally )
+   throws IOException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, SignatureException, ConstructionException {
+      CVCertificate cvc = new CVCertificate(body);
+      cvc.setSignature(sign(signerKey, algorithmName, cvc.getTBS(), provider, hashLocally));
+      return cvc;
+   }
+
+   /**
+    * Prepares a CVCertificate for being signed separately, see PreparedCertificate
+    * @param body
+    * @param algorithmName SHA256WithECDSA, SHA1WithRSA etc
+    * @param signerKey the private or public key of the signer, which gives the length of ECDSA
+    *        signatures. If null, r and s of ECDSA signatures are not padded beyond the longer of them.
+    * @return
+    * @throws ConstructionException
+    */
+   public static PreparedCertificate prepareCertificate(
+         CVCertificateBody      body,
+         String                 algorithmName,
+         Key                    signerKey )
+   throws ConstructionException {
+      return new PreparedCertificate(body, algorithmName, signerKey);
+   }
+
+   /**
+    * Signs prepared certificates as one batch and attaches the signatures
+    * @param certificates
+    * @param signer
+    * @return the signed certificates, in the same order
+    * @throws SignatureException if signing fails, or the signer does not return one valid signature per certificate
+    * @throws ConstructionException
+    */
+   public static List<CVCertificate> createCertificates(
+         List<PreparedCertificate> certificates,
+         BatchSigner               signer )
+   throws SignatureException, ConstructionException {
+      return PreparedCertificate.attachSignatures(certificates, signer.sign(certificates), false);
+   }
    
    /**
     * Generates a CVCertificate
@@ -320,17 +373,8 @@ public final class CertificateGenerator {
       
       CVCertificate cvc = new CVCertificate(reqBody);
       
-      // Perform the signing
-      Signature innerSign = Signature.getInstance(AlgorithmUtil.convertAlgorithmNameToCVC(algorithmName), signProvider);
-      innerSign.initSign(keyPair.getPrivate());
-      innerSign.update(cvc.getTBS());
-      byte[] signdata = innerSign.sign();
-
-      // Now convert the X9.62 signature to a CVC signature
-      byte[] sig = BCECUtil.convertX962SigToCVC(algorithmName, signdata);
-
-      // Create and return the CVCRequest (which is an instance of CVCertificate)
-      cvc.setSignature(sig);
+      // Perform the signing and return the CVCRequest (which is an instance of CVCertificate)
+      cvc.setSignature(sign(keyPair.getPrivate(), algorithmName, cvc.getTBS(), signProvider, false));
       return cvc;
    }
 
@@ -382,18 +426,37 @@ public final class CertificateGenerator {
 
       CVCAuthenticatedRequest authRequest = new CVCAuthenticatedRequest(cvcRequest, caRef);
 
-      // Perform the signing
-      Signature outerSign = Signature.getInstance(AlgorithmUtil.convertAlgorithmNameToCVC(algorithmName), signProvider);
-      outerSign.initSign(keyPair.getPrivate());
-      outerSign.update(authRequest.getTBS());
-      byte[] signdata = outerSign.sign();
+      // Perform the signing and return the CVCAuthenticatedRequest
+      authRequest.setSignature(sign(keyPair.getPrivate(), algorithmName, authRequest.getTBS(), signProvider, false));
+      return authRequest;
+   }
 
+   /**
+    * Signs 'tbs' and returns the signature in the CVC format. ECDSA signatures are made with
+    * the provider's plain variant of the algorithm if it has one, or else converted from X9.62.
+    * With 'hashLocally', the provider only signs the digest if the algorithm allows.
+    */
+   private static byte[] sign(PrivateKey signerKey, String algorithmName, byte[] tbs, String provider, boolean hashLocally)
+   throws IOException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, SignatureException {
+      String algorithm = AlgorithmUtil.convertAlgorithmNameToCVC(algorithmName);
+      String digestAlgorithm = hashLocally ? PreHashedSignature.getDigestAlgorithm(algorithm) : null;
+      if( digestAlgorithm!=null ){
+         byte[] digest = SignatureCache.getMessageDigest(digestAlgorithm, null).digest(tbs);
+         tbs = PreHashedSignature.getSignatureInput(algorithm, digest);
+         algorithm = PreHashedSignature.getSignatureAlgorithm(algorithm);
+      }
+      String plainAlgorithm = PlainECDSA.getPlainAlgorithm(algorithm, provider);
+      // Not cached, since the engine would keep the private key
+      String signAlgorithm = plainAlgorithm!=null ? plainAlgorithm : algorithm;
+      Signature signature = provider!=null ? Signature.getInstance(signAlgorithm, provider) : Signature.getInstance(signAlgorithm);
+      signature.initSign(signerKey);
+      signature.update(tbs);
+      byte[] signdata = signature.sign();
+      if( plainAlgorithm!=null ){
+         return signdata;
+      }
       // Now convert the X9.62 signature to a CVC signature
-      byte[] sig = BCECUtil.convertX962SigToCVC(algorithmName, signdata);
-
-      // Create and return the CVCAuthenticatedRequest
-      authRequest.setSignature(sig);
-      return authRequest;
+      return BCECUtil.convertX962SigToCVC(algorithmName, signdata, BCECUtil.getOrderLength(signerKey));
    }
 
 }
@@ -12,9 +12,15 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.ejbca.cvc.exception.ConstructionException;
 import org.ejbca.cvc.exception.ParseException;
@@ -23,6 +29,14 @@ import org.ejbca.cvc.exception.ParseException;
 /**
  * Class responsible for decoding a DER-encoded CVC object, like a
  * CVCertificate or any other instance of CVCObject. 
+ * <p>
+ * The TLVs are walked by index directly over the supplied data. The methods that take
+ * a whole byte array decode a copy of it, so that the caller may reuse the array. The
+ * methods that take a region of an array or a ByteBuffer decode in place: data fields
+ * keep references to their value bytes instead of copying them.
+ * <p>
+ * Objects are decoded with CVCDecoder.DEFAULT. Use a CVCDecoder with tighter
+ * limits for input that can not be trusted.
  * 
  * @author Keijo Kurkinen, Swedish National Police Board
  * @version $Id$
@@ -35,137 +49,293 @@ public final class CertificateParser {
    }
    
    /**
-    * Decodes a DER-encoded byte array containing any CVCObject
+    * Decodes a DER-encoded byte array containing any CVCObject. The array is copied
+    * and may be modified afterwards.
     * @param data
     * @return
     */
    public static CVCObject parseCVCObject(byte[] data) throws ParseException, ConstructionException {
-      return decode(data, null);
+      return parseCVCObject(data.clone(), 0, data.length);
    }
 
+   /**
+    * Decodes a CVCObject from a region of a byte array. Any bytes
+    * following the first object in the region are ignored.
+    * <p>
+    * The region is not copied: the decoded object references it, so it must not be
+    * modified while the object is in use.
+    * @param data
+    * @param offset start of the DER-encoded object
+    * @param length number of available bytes
+    * @return
+    */
+   public static CVCObject parseCVCObject(byte[] data, int offset, int length) throws ParseException, ConstructionException {
+      return decode(new TLVReader(data, offset, length), null);
+   }
 
    /**
-    * Decodes a DER-encoded byte array containing a CVCertificate
+    * Decodes a DER-encoded byte array containing a CVCertificate. The array is copied
+    * and may be modified afterwards.
     * @param data
     * @return
     */
    public static CVCertificate parseCertificate(byte[] data) throws ParseException, ConstructionException {
-      return (CVCertificate)decode(data, CVCTagEnum.CV_CERTIFICATE);
+      return parseCertificate(data.clone(), 0, data.length);
    }
 
-   // Creates InputStreams and starts the decoding
-   private static CVCObject decode(byte[] data, CVCTagEnum expectedTag) throws ParseException, ConstructionException {
-      ByteArrayInputStream bin = null;
-      try {
-         try {
-            bin = new ByteArrayInputStream(data);
-            DataInputStream din = new DataInputStream(bin);
-            return decode(din, expectedTag, null);
-         }
-         finally {
-            if( bin!=null ){
-               bin.close();
-            }
-         }
+   /**
+    * Decodes a CVCertificate from a region of a byte array.
+    * <p>
+    * The region is not copied: the certificate's fields and its cached encoding
+    * reference it, so it must not be modified while the certificate is in use.
+    * @param data
+    * @param offset start of the DER-encoded certificate
+    * @param length number of available bytes
+    * @return
+    */
+   public static CVCertificate parseCertificate(byte[] data, int offset, int length) throws ParseException, ConstructionException {
+      return (CVCertificate)decode(new TLVReader(data, offset, length), CVCTagEnum.CV_CERTIFICATE);
+   }
+
+   /**
+    * Decodes a CVCertificate from the remaining bytes of a ByteBuffer and advances 
+    * the buffer's position past the certificate. Buffers backed by an array are 
+    * read in place, so their contents must not be modified while the certificate
+    * is in use; the contents of a direct buffer are copied once into the heap
+    * before decoding.
+    * @param buffer
+    * @return
+    */
+   public static CVCertificate parseCertificate(ByteBuffer buffer) throws ParseException, ConstructionException {
+      final TLVReader reader;
+      final int start;
+      if( buffer.hasArray() ){
+         start = buffer.arrayOffset() + buffer.position();
+         reader = new TLVReader(buffer.array(), start, buffer.remaining());
       }
-      catch( IOException e ){
-         throw new ParseException(e);
+      else {
+         final byte[] data = new byte[buffer.remaining()];
+         buffer.duplicate().get(data);
+         start = 0;
+         reader = new TLVReader(data, 0, data.length);
       }
+      final CVCertificate cert = (CVCertificate)decode(reader, CVCTagEnum.CV_CERTIFICATE);
+      buffer.position(buffer.position() + reader.getPosition() - start);
+      return cert;
+   }
+
+   /**
+    * Indexes a DER-encoded CVCertificate without decoding its fields. The fields are 
+    * decoded when they are first requested from the returned object, which references
+    * 'data' instead of copying it.
+    * @param data
+    * @return
+    * @see LazyCVCertificate
+    */
+   public static LazyCVCertificate parseLazyCertificate(byte[] data) throws ParseException {
+      return parseLazyCertificate(data, 0, data.length);
+   }
+
+   /**
+    * Indexes a CVCertificate in a region of a byte array without decoding its fields
+    * @param data
+    * @param offset start of the DER-encoded certificate
+    * @param length number of available bytes
+    * @return
+    * @see LazyCVCertificate
+    */
+   public static LazyCVCertificate parseLazyCertificate(byte[] data, int offset, int length) throws ParseException {
+      return new LazyCVCertificate(new TLVReader(data, offset, length));
+   }
+
+   /**
+    * Decodes a batch of DER-encoded CVCertificates in parallel in the common ForkJoinPool
+    * @param data
+    * @return one result per element in 'data', in the same order
+    * @see #parseAll(List, ForkJoinPool)
+    */
+   public static List<ParseResult> parseAll(List<byte[]> data) {
+      return parseAll(data, ForkJoinPool.commonPool());
    }
 
-   // Performs the actual decoding
-   private static CVCObject decode(DataInputStream din, CVCTagEnum expectedTag, CVCTagEnum tagIfAmbiguous) 
-   throws IOException, ConstructionException, ParseException {
-      // First chunk to decode is the tag
-      int tagValue = decodeTag(din);
-      CVCTagEnum tag = findTagFromValue(tagValue);
+   /**
+    * Decodes a batch of DER-encoded CVCertificates in parallel. A certificate that can not 
+    * be parsed does not affect the others; its ParseResult holds the exception instead.
+    * The arrays are decoded in place and must not be modified afterwards.
+    * @param data
+    * @param pool
+    * @return one result per element in 'data', in the same order
+    */
+   public static List<ParseResult> parseAll(List<byte[]> data, ForkJoinPool pool) {
+      final ParseResult[] results = new ParseResult[data.size()];
+      pool.invoke(new ParseAllTask(data, results, 0, results.length));
+      return Arrays.asList(results);
+   }
+
+   /**
+    * Decodes DER-encoded CVCertificates as they are pulled from the returned stream, 
+    * which is parallel if 'parallel' is true. The stream splits as 'data' does.
+    * The arrays are decoded in place and must not be modified afterwards.
+    * @param data
+    * @param parallel
+    * @return
+    */
+   public static Stream<ParseResult> parseAll(Spliterator<byte[]> data, boolean parallel) {
+      return StreamSupport.stream(new ParsingSpliterator(data), parallel);
+   }
 
-      // Validate the tag if a specific one was expected here
-      if( expectedTag!=null && tag!=expectedTag ){
-         throw new ParseException("Expected first tag " + expectedTag + " but found " + tag);
+   // Decodes one certificate in a batch, reusing the worker's reader
+   private static ParseResult parseResult(TLVReader reader, byte[] data) {
+      try {
+         reader.reset(data, 0, data.length);
+         return new ParseResult((CVCertificate)decode(reader, CVCTagEnum.CV_CERTIFICATE));
+      }
+      catch( ParseException e ){
+         return new ParseResult(e);
       }
-      // Special handling for certain tags that have the same value, e.g. ARBITRARY_DATA and ROLE_AND_ACCESS_RIGHTS
-      if (tagIfAmbiguous != null && tag.getValue() == tagIfAmbiguous.getValue()) {
-          tag = tagIfAmbiguous;
+      catch( ConstructionException e ){
+         return new ParseResult(new ParseException(e));
       }
+      catch( RuntimeException e ){
+         // E.g. an unknown public key OID, which should not abort the batch
+         return new ParseResult(new ParseException(e));
+      }
+   }
 
-      // The second chunk to decode is the field length
-      int length = CVCObject.decodeLength(din);
+   /** Splits a batch until it is small enough to be decoded by one worker with one reader */
+   private static final class ParseAllTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private static final int THRESHOLD = 64;
 
-      if( tag.isSequence() ){
-         // Save the position where data for this sequence ends
-         int sequenceEnd = din.available() - length;
-
-         // Create correct instance of AbstractSequence
-         AbstractSequence sequence = SequenceFactory.createSequence(tag);
-         
-         // Add this sequence's subfields through recursion
-         while( din.available() > sequenceEnd ) {
-            // Special handling for ARBITRARY_DATA which has the same value as ROLE_AND_ACCESS_RIGHTS
-            final CVCTagEnum nestedTagIfAmbiguous;
-            switch (tag) {
-            case DISCRETIONARY_DATA_TEMPLATE:
-                nestedTagIfAmbiguous = CVCTagEnum.ARBITRARY_DATA;
-                break;
-            default:
-                nestedTagIfAmbiguous = null;
+      private final List<byte[]> data;
+      private final ParseResult[] results;
+      private final int from;
+      private final int to;
+
+      ParseAllTask(List<byte[]> data, ParseResult[] results, int from, int to) {
+         this.data = data;
+         this.results = results;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+         if( to-from<=THRESHOLD ){
+            final TLVReader reader = new TLVReader();
+            for( int i=from; i<to; i++ ){
+               results[i] = parseResult(reader, data.get(i));
             }
-            sequence.addSubfield(decode(din, null, nestedTagIfAmbiguous));
          }
-         // If we got a GenericPublicKeyField we must map this 
-         // into an instance of CVCPublicKey before continuing
-         if( sequence instanceof GenericPublicKeyField ){
-            sequence = KeyFactory.createInstance((GenericPublicKeyField)sequence);
+         else {
+            final int mid = (from + to) >>> 1;
+            invokeAll(new ParseAllTask(data, results, from, mid), new ParseAllTask(data, results, mid, to));
          }
-         return sequence;
-      }
-      else {
-         // OK, it's a data field so just parse it
-         byte[] data = new byte[length];
-         din.read(data, 0, length);
-         return FieldFactory.decodeField(tag, data);
       }
    }
 
-   
+   /** Decodes the elements of another Spliterator. Each split has its own reader. */
+   private static final class ParsingSpliterator implements Spliterator<ParseResult> {
+      private final Spliterator<byte[]> source;
+      private final TLVReader reader = new TLVReader();
 
-   /* Maps a tag value to a specific CVCTagEnum. Note that there
-    * exists two tags with the same value (0x82)! In this case the
-    * first of these (EXPONENT) will be returned.
-    */
-   private static CVCTagEnum findTagFromValue(int tagvalue) throws ParseException{
-      CVCTagEnum wantedType = null;
-      for( CVCTagEnum type : CVCTagEnum.values() ){
-         if( type.getValue()==tagvalue ){
-            wantedType = type;
-            break;
-         }
+      ParsingSpliterator(Spliterator<byte[]> source) {
+         this.source = source;
+      }
+
+      @Override
+      public boolean tryAdvance(final Consumer<? super ParseResult> action) {
+         return source.tryAdvance(data -> action.accept(parseResult(reader, data)));
       }
-      if( wantedType!=null ){
-         return wantedType;
+
+      @Override
+      public void forEachRemaining(final Consumer<? super ParseResult> action) {
+         source.forEachRemaining(data -> action.accept(parseResult(reader, data)));
       }
-      else {
-         throw new ParseException("Unknown CVC tag value " + Integer.toHexString(tagvalue));
+
+      @Override
+      public Spliterator<ParseResult> trySplit() {
+         final Spliterator<byte[]> split = source.trySplit();
+         return split!=null ? new ParsingSpliterator(split) : null;
+      }
+
+      @Override
+      public long estimateSize() {
+         return source.estimateSize();
+      }
+
+      @Override
+      public int characteristics() {
+         return source.characteristics() & (ORDERED | SIZED | SUBSIZED | IMMUTABLE | CONCURRENT) | NONNULL;
       }
    }
-   
+
    /**
-    * Reads a tag value from the input stream. Encoded according to ITU-T X.690
-    * @param din
-    * @return
+    * Walks a DER-encoded CVCObject and reports its fields to 'visitor', without 
+    * creating any objects. Any bytes following the first object are ignored.
+    * Objects nested deeper than CVCDecoder.DEFAULT_MAX_DEPTH are rejected.
+    * @param data
+    * @param offset start of the DER-encoded object
+    * @param length number of available bytes
+    * @param visitor
+    * @return number of bytes in the visited object
+    * @see CVCVisitor
     */
-   private static int decodeTag(DataInputStream din) throws IOException {
-      int tagValue = 0;
-      int b1 = din.readUnsignedByte();
-      if( (b1 & 0x1F) == 0x1F ){
-         // There is another byte to read
-         byte b2 = din.readByte();
-         tagValue = (b1 << 8) + b2;
+   public static int visit(byte[] data, int offset, int length, CVCVisitor visitor) throws ParseException {
+      final TLVReader reader = new TLVReader(data, offset, length);
+      visit(reader, reader.getEnd(), TagTable.ALL, visitor, 1);
+      return reader.getPosition() - offset;
+   }
+
+   // Reports one TLV, and the contents of a sequence, to the visitor
+   private static void visit(TLVReader reader, int limit, TagTable tags, CVCVisitor visitor, int depth) throws ParseException {
+      final CVCTagEnum tag = tags.find(reader.readTag(limit));
+      final int length = reader.readLength(limit);
+      if( depth>CVCDecoder.DEFAULT_MAX_DEPTH ){
+         throw new ParseException(tag + " is nested deeper than the maximum of " + CVCDecoder.DEFAULT_MAX_DEPTH);
+      }
+
+      if( tag.isSequence() ){
+         final int sequenceEnd = reader.getPosition() + length;
+         if( visitor.startSequence(tag, length) ){
+            final TagTable nestedTags = getNestedTags(tag, reader, sequenceEnd);
+            while( reader.getPosition() < sequenceEnd ){
+               visit(reader, sequenceEnd, nestedTags, visitor, depth + 1);
+            }
+         }
+         else {
+            reader.skip(length);
+         }
+         visitor.endSequence(tag);
       }
       else {
-         tagValue = b1;
+         final int offset = reader.getPosition();
+         reader.skip(length);
+         visitor.primitive(tag, reader.getBuffer(), offset, length);
       }
-      return tagValue;
    }
-  
+
+   // Returns the tags for the subfields of a sequence, where any ambiguous tag values are resolved
+   private static TagTable getNestedTags(CVCTagEnum sequenceTag, TLVReader reader, int sequenceEnd) throws ParseException {
+      if( sequenceTag==CVCTagEnum.PUBLIC_KEY ){
+         // EXPONENT and COEFFICIENT_A have the same value, so it depends on the key's OID
+         final TagTable keyTags = TagTable.forPublicKey(reader, sequenceEnd);
+         return keyTags!=null ? keyTags : TagTable.RSA_PUBLIC_KEY;
+      }
+      return TagTable.forSequence(sequenceTag);
+   }
+
+   // Decodes the first object in the reader's region
+   static CVCObject decode(TLVReader reader, CVCTagEnum expectedTag) throws ParseException, ConstructionException {
+      return CVCDecoder.DEFAULT.decode(reader, expectedTag);
+   }
+
+   /* Maps a tag value to a specific CVCTagEnum. Note that there
+    * exists two tags with the same value (0x82)! In this case the
+    * first of these (EXPONENT) will be returned.
+    */
+   static CVCTagEnum findTagFromValue(int tagvalue) throws ParseException{
+      return TagTable.ALL.find(tagvalue);
+   }
+
 }
@@ -12,14 +12,19 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.time.LocalDate;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
  * Represents a CVC field of type Date
+ * <p>
+ * The date is kept as days since 1970-01-01 (GMT). Effective dates start at 00:00:00 GMT
+ * and expiration dates end at 23:59:59 GMT, which is the time returned by getDate().
  * 
  * @author Keijo Kurkinen, Swedish National Police Board
  * @version $Id$
@@ -32,46 +37,29 @@ public class DateField extends AbstractDataField {
     /** The length of the array is always the same */
     private static final int DATE_ARRAY_SIZE = 6;
 
-    /** Time Zone GMT must be used for effective and expiration dates */
-    private static final TimeZone GMTTIMEZONE = TimeZone.getTimeZone("GMT");
+    static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    /** Validity is inclusive the expiration date, so it is given the time 23:59:59 */
+    static final long END_OF_DAY_MILLIS = MILLIS_PER_DAY - 1000;
 
-    /** Date format when returning this object as text */
-    private static final DateFormat FORMAT_PRINTABLE = new SimpleDateFormat("yyyy-MM-dd");
-    static {
-        FORMAT_PRINTABLE.setTimeZone(GMTTIMEZONE);
-    }
+    /** Serialized as before, with the Date returned by getDate() */
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("date", Date.class) };
 
-    private Date date;
+    private transient long epochDay;
 
     DateField(CVCTagEnum type) {
         super(type);
     }
 
     /**
-     * Constructs a new instance from tag and Date
+     * Constructs a new instance from tag and Date. Only the date in GMT is kept.
      * 
      * @param type
      * @param date
      */
-	DateField(CVCTagEnum type, Date date) {
-		this(type);
-
-		Calendar cal = Calendar.getInstance(GMTTIMEZONE);
-		cal.setTimeInMillis(date.getTime());
-
-		int year = cal.get(Calendar.YEAR);
-		int month = cal.get(Calendar.MONTH);
-		int day = cal.get(Calendar.DAY_OF_MONTH);
-
-		cal.clear();
-
-		if (type == CVCTagEnum.EFFECTIVE_DATE) {
-			cal.set(year, month, day, 0, 0, 0);
-		} else {
-			cal.set(year, month, day, 23, 59, 59);
-		}
-		this.date = cal.getTime();
-	}
+    DateField(CVCTagEnum type, Date date) {
+        this(type);
+        this.epochDay = Math.floorDiv(date.getTime(), MILLIS_PER_DAY);
+    }
 
     /**
      * Constructs instance by decoding DER-encoded data
@@ -80,35 +68,82 @@ public class DateField extends AbstractDataField {
      * @param data
      */
     DateField(CVCTagEnum type, byte[] data) {
+        this(type, data, 0, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Constructs instance by decoding a region of DER-encoded data
+     * 
+     * @param type
+     * @param data
+     * @param offset
+     * @param length
+     */
+    DateField(CVCTagEnum type, byte[] data, int offset, int length) {
         this(type);
-        if (data == null || data.length != 6) {
-            throw new IllegalArgumentException("data argument must have length 6, was " + (data == null ? 0 : data.length));
+        if (data == null || length != DATE_ARRAY_SIZE) {
+            throw new IllegalArgumentException("data argument must have length 6, was " + (data == null ? 0 : length));
         }
-        int year = 2000 + data[0] * 10 + data[1];
-        int month = data[2] * 10 + data[3] - 1; // Java month index starts with
-                                                // 0...
-        int day = data[4] * 10 + data[5];
-        // Now create a Date instance using the decoded values
-        Calendar cal = Calendar.getInstance(GMTTIMEZONE);
-        cal.clear();
-        if (type == CVCTagEnum.EFFECTIVE_DATE) {
-            cal.set(year, month, day, 0, 0, 0);
-        } else { // EXPIRE_DATE
-            // Validity is inclusive this date, so to make sure that
-            // a Date comparison gives the expected result we add a
-            // time component
-            cal.set(year, month, day, 23, 59, 59);
+        this.epochDay = decodeEpochDay(data, offset);
+    }
+
+    /**
+     * Decodes six date digits, as in '080407', to days since 1970-01-01 (GMT). Months
+     * and days out of range roll over into the next or previous month, as with a
+     * lenient Calendar.
+     * 
+     * @param data
+     * @param offset
+     * @return
+     */
+    static long decodeEpochDay(byte[] data, int offset) {
+        final int year = 2000 + data[offset] * 10 + data[offset + 1];
+        final int month = data[offset + 2] * 10 + data[offset + 3];
+        final int day = data[offset + 4] * 10 + data[offset + 5];
+        if (month >= 1 && month <= 12 && day >= 1 && day <= 28) {
+            // Always valid, no need to roll over
+            return LocalDate.of(year, month, day).toEpochDay();
         }
-        date = cal.getTime();
+        return LocalDate.of(year, 1, 1).plusMonths(month - 1).plusDays(day - 1).toEpochDay();
     }
 
     /**
-     * Returns the date
+     * Returns the date, at 00:00:00 GMT for an effective date and at 23:59:59 GMT
+     * for an expiration date
      * 
      * @return
      */
     public Date getDate() {
-        return date;
+        return new Date(getTime());
+    }
+
+    /**
+     * Returns the date as days since 1970-01-01 (GMT)
+     * 
+     * @return
+     */
+    public long getEpochDay() {
+        return epochDay;
+    }
+
+    /**
+     * Checks if an instant is within the validity given by this date, that is not before
+     * an effective date or not after an expiration date
+     * 
+     * @param epochMillis milliseconds since 1970-01-01 GMT, as System.currentTimeMillis()
+     * @return
+     */
+    public boolean isValidAt(long epochMillis) {
+        if (getTag() == CVCTagEnum.EFFECTIVE_DATE) {
+            return epochMillis >= getTime();
+        }
+        return epochMillis <= getTime();
+    }
+
+    // Returns the same as getDate().getTime()
+    private long getTime() {
+        final long start = epochDay * MILLIS_PER_DAY;
+        return getTag() == CVCTagEnum.EFFECTIVE_DATE ? start : start + END_OF_DAY_MILLIS;
     }
 
     /**
@@ -119,27 +154,49 @@ public class DateField extends AbstractDataField {
      */
     @Override
     protected byte[] getEncoded() {
-        byte[] dateArr = new byte[DATE_ARRAY_SIZE];
-
-        Calendar cal = Calendar.getInstance(GMTTIMEZONE);
-        cal.setTimeInMillis(date.getTime());
-        int year = cal.get(Calendar.YEAR) - 2000; // Year is encoded as 08, 09,
-                                                  // 10 ...
-        int month = cal.get(Calendar.MONTH) + 1; // Month is encoded as 1,2, ...
-                                                 // ,12
-        int day = cal.get(Calendar.DAY_OF_MONTH);
-        dateArr[0] = (byte) (year / 10);
-        dateArr[1] = (byte) (year % 10);
-        dateArr[2] = (byte) (month / 10);
-        dateArr[3] = (byte) (month % 10);
-        dateArr[4] = (byte) (day / 10);
-        dateArr[5] = (byte) (day % 10);
+        final byte[] dateArr = new byte[DATE_ARRAY_SIZE];
+        writeValue(dateArr, 0);
         return dateArr;
     }
 
+    @Override
+    protected int getValueLength() {
+        return DATE_ARRAY_SIZE;
+    }
+
+    @Override
+    protected int writeValue(byte[] out, int pos) {
+        final LocalDate date = LocalDate.ofEpochDay(epochDay);
+        final int year = date.getYear() - 2000; // Year is encoded as 08, 09, 10 ...
+        final int month = date.getMonthValue();
+        final int day = date.getDayOfMonth();
+        out[pos++] = (byte) (year / 10);
+        out[pos++] = (byte) (year % 10);
+        out[pos++] = (byte) (month / 10);
+        out[pos++] = (byte) (month % 10);
+        out[pos++] = (byte) (day / 10);
+        out[pos++] = (byte) (day % 10);
+        return pos;
+    }
+
     @Override
     protected String valueAsText() {
-        return FORMAT_PRINTABLE.format(date);
+        // ISO format, that is yyyy-MM-dd
+        return LocalDate.ofEpochDay(epochDay).toString();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("date", getDate());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final Date date = (Date) in.readFields().get("date", null);
+        if (date == null) {
+            throw new InvalidObjectException("DateField without a date");
+        }
+        this.epochDay = Math.floorDiv(date.getTime(), MILLIS_PER_DAY);
     }
 
 }
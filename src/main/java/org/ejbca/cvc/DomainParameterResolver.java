@@ -0,0 +1,116 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.security.spec.ECParameterSpec;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Supplies EC domain parameters to the public keys of DV and IS certificates, which
+ * only carry the public point and use the parameters of the CVCA that the chain
+ * starts from.
+ * <p>
+ * The parameters are recorded by 'Certificate Holder Reference' as CVCA and DV
+ * certificates are added, and looked up by the 'Certificate Authority Reference'
+ * of the certificates they have issued. All keys in a chain are given the same
+ * ECParameterSpec instance. Since the recorded parameters are used for every
+ * certificate issued under a holder reference, only trusted CVCA certificates and
+ * certificates that have been verified may be added, and a holder reference keeps
+ * the parameters it was first recorded with:
+ * <pre>
+ *    resolver.addCertificate(cvca);
+ *    dv.verify(resolver.getVerifyingKey(cvca), "BC");
+ *    is.verify(resolver.getVerifyingKey(dv), "BC");
+ * </pre>
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class DomainParameterResolver {
+
+   private final ConcurrentHashMap<String, ECParameterSpec> params = new ConcurrentHashMap<String, ECParameterSpec>();
+
+   /**
+    * Records the domain parameters of a certificate's EC public key, taking them from
+    * the issuing certificate if the key has none. RSA keys are ignored.
+    * <p>
+    * The certificate must be a trusted CVCA certificate, or have been verified with the
+    * key of its issuer. Parameters already recorded for the holder reference are kept.
+    * @param cert
+    * @return true if the domain parameters of the certificate are known, false if the key is
+    *         not an EC key, or has no parameters and the issuer's are not known
+    * @throws NoSuchFieldException if the certificate lacks a mandatory field
+    * @throws IllegalArgumentException if other domain parameters are recorded for the holder reference
+    */
+   public boolean addCertificate(final CVCertificate cert) throws NoSuchFieldException {
+      final CVCertificateBody body = cert.getCertificateBody();
+      final CVCPublicKey key = body.getPublicKey();
+      if( !(key instanceof PublicKeyEC) ){
+         return false;
+      }
+      final PublicKeyEC ecKey = (PublicKeyEC)key;
+      ECParameterSpec spec = ecKey.getParams();
+      final boolean inherited = spec==null;
+      if( inherited ){
+         final CAReferenceField authorityReference = body.getAuthorityReference();
+         spec = authorityReference!=null ? params.get(authorityReference.getConcatenated()) : null;
+         if( spec==null ){
+            return false;
+         }
+      }
+      final String holderReference = body.getHolderReference().getConcatenated();
+      final ECParameterSpec recorded = params.putIfAbsent(holderReference, spec);
+      if( recorded!=null && !sameParams(recorded, spec) ){
+         throw new IllegalArgumentException("Other domain parameters are already recorded for " + holderReference);
+      }
+      if( inherited ){
+         ecKey.setInheritedParams(spec);
+      }
+      return true;
+   }
+
+   // Compares the values of domain parameters, since ECParameterSpec does not
+   private static boolean sameParams(final ECParameterSpec a, final ECParameterSpec b) {
+      return a==b || (a.getCurve().equals(b.getCurve()) && a.getGenerator().equals(b.getGenerator())
+            && a.getOrder().equals(b.getOrder()) && a.getCofactor()==b.getCofactor());
+   }
+
+   /**
+    * Returns the domain parameters recorded for a holder reference
+    * @param holderReference as given by ReferenceField.getConcatenated()
+    * @return the parameters, or null if no certificate with parameters has been added for the reference
+    */
+   public ECParameterSpec getParams(final String holderReference) {
+      return params.get(holderReference);
+   }
+
+   /**
+    * Adds a certificate and returns its public key, ready for verifying the certificates
+    * issued by it. An EC key without domain parameters has been given those of its issuer.
+    * As with addCertificate(), the certificate must be trusted or verified.
+    * @param issuer
+    * @return
+    * @throws NoSuchFieldException if the certificate lacks a mandatory field
+    * @throws IllegalArgumentException if the key is an EC key whose domain parameters are not known,
+    *         or other domain parameters are recorded for its holder reference
+    */
+   public CVCPublicKey getVerifyingKey(final CVCertificate issuer) throws NoSuchFieldException {
+      final CVCPublicKey key = issuer.getCertificateBody().getPublicKey();
+      if( !addCertificate(issuer) && key instanceof PublicKeyEC ){
+         throw new IllegalArgumentException("No domain parameters for the issuer of "
+               + issuer.getCertificateBody().getHolderReference().getConcatenated());
+      }
+      return key;
+   }
+
+}
@@ -0,0 +1,111 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.math.BigInteger;
+import java.security.spec.ECField;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The domain parameters of a curve, encoded as the values of the PublicKeyEC subfields.
+ * <p>
+ * Encodings are cached by the parameter values, so that the parameters are not encoded
+ * again for every EC key on the same curve. Only a limited number of curves are cached.
+ * The arrays are shared and must not be modified, or handed out without copying.
+ *
+ * @version $Id$
+ */
+final class EncodedDomainParameters {
+
+   /** Number of curves to cache; parameters of further curves are encoded every time */
+   private static final int MAX_CACHED = 64;
+   private static final ConcurrentHashMap<Key, EncodedDomainParameters> CACHE = new ConcurrentHashMap<Key, EncodedDomainParameters>();
+
+   /** Prime modulus, or null if the field is not a prime field */
+   final byte[] modulus;
+   final byte[] coefficientA;
+   final byte[] coefficientB;
+   final byte[] basePointG;
+   final byte[] order;
+   final int cofactor;
+
+   /**
+    * Encodes domain parameters
+    * @param spec
+    */
+   EncodedDomainParameters(final ECParameterSpec spec) {
+      final EllipticCurve curve = spec.getCurve();
+      final ECField field = curve.getField();
+      // TODO: Can ecField be of type ECFieldF2m? Then what is the modulus?
+      this.modulus = field instanceof ECFieldFp ? CVCObject.trimByteArray(((ECFieldFp)field).getP().toByteArray()) : null;
+      this.coefficientA = CVCObject.trimByteArray(curve.getA().toByteArray());
+      this.coefficientB = CVCObject.trimByteArray(curve.getB().toByteArray());
+      this.basePointG = PublicKeyEC.encodePoint(spec.getGenerator(), curve);
+      this.order = CVCObject.trimByteArray(spec.getOrder().toByteArray());
+      this.cofactor = spec.getCofactor();
+   }
+
+   /**
+    * Returns the encoded parameters, from the cache if the same parameters have been encoded before
+    * @param spec
+    * @return
+    */
+   static EncodedDomainParameters get(final ECParameterSpec spec) {
+      final Key key = new Key(spec);
+      EncodedDomainParameters encoded = CACHE.get(key);
+      if( encoded==null ){
+         encoded = new EncodedDomainParameters(spec);
+         if( CACHE.size()<MAX_CACHED ){
+            final EncodedDomainParameters previous = CACHE.putIfAbsent(key, encoded);
+            if( previous!=null ){
+               encoded = previous;
+            }
+         }
+      }
+      return encoded;
+   }
+
+   /** Compares the parameter values, since equal specs are usually separate instances */
+   private static final class Key {
+      private final EllipticCurve curve;
+      private final ECPoint generator;
+      private final BigInteger order;
+      private final int cofactor;
+
+      Key(final ECParameterSpec spec) {
+         this.curve = spec.getCurve();
+         this.generator = spec.getGenerator();
+         this.order = spec.getOrder();
+         this.cofactor = spec.getCofactor();
+      }
+
+      @Override
+      public boolean equals(final Object other) {
+         if( !(other instanceof Key) ){
+            return false;
+         }
+         final Key key = (Key)other;
+         return cofactor==key.cofactor && order.equals(key.order) && curve.equals(key.curve) && generator.equals(key.generator);
+      }
+
+      @Override
+      public int hashCode() {
+         return curve.hashCode() * 31 + order.hashCode();
+      }
+   }
+
+}
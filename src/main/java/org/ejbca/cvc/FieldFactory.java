@@ -33,21 +33,37 @@ public class FieldFactory {
     * @throws IllegalArgumentException if the tag represents a sequence
     */
    public static AbstractDataField decodeField(CVCTagEnum tag, byte[] data) throws IOException {
+      return decodeField(tag, data, 0, data.length);
+   }
+
+   /**
+    * Constructs a new instance and populates it with data from a region of the
+    * supplied byte array. Fields that keep their value as raw bytes, like ByteField,
+    * reference the region instead of copying it.
+    * @param tag
+    * @param data
+    * @param offset start of the field value
+    * @param length length of the field value
+    * @return
+    * @throws IOException
+    * @throws IllegalArgumentException if the tag represents a sequence
+    */
+   public static AbstractDataField decodeField(CVCTagEnum tag, byte[] data, int offset, int length) throws IOException {
       if( tag.isSequence() ) {
          throw new IllegalArgumentException("Tag " + tag + " is a sequence");
       }
       
       AbstractDataField fieldObject = null;
       switch( tag ){
-         case EFFECTIVE_DATE         : fieldObject = new DateField(tag, data); break;
-         case EXPIRATION_DATE        : fieldObject = new DateField(tag, data); break;
-         case CA_REFERENCE           : fieldObject = new CAReferenceField(data); break;
-         case HOLDER_REFERENCE       : fieldObject = new HolderReferenceField(data); break;
-         case OID                    : fieldObject = new OIDField(data); break;
-         case ROLE_AND_ACCESS_RIGHTS : fieldObject = new AuthorizationField(data); break;
-         case PROFILE_IDENTIFIER     : fieldObject = new IntegerField(tag, data); break;
-         case COFACTOR_F             : fieldObject = new IntegerField(tag, data); break;
-         default                     : fieldObject = new ByteField(tag, data);
+         case EFFECTIVE_DATE         : fieldObject = new DateField(tag, data, offset, length); break;
+         case EXPIRATION_DATE        : fieldObject = new DateField(tag, data, offset, length); break;
+         case CA_REFERENCE           : fieldObject = new CAReferenceField(data, offset, length); break;
+         case HOLDER_REFERENCE       : fieldObject = new HolderReferenceField(data, offset, length); break;
+         case OID                    : fieldObject = OIDField.intern(data, offset, length); break;
+         case ROLE_AND_ACCESS_RIGHTS : fieldObject = new AuthorizationField(data, offset, length); break;
+         case PROFILE_IDENTIFIER     : fieldObject = new IntegerField(tag, data, offset, length); break;
+         case COFACTOR_F             : fieldObject = new IntegerField(tag, data, offset, length); break;
+         default                     : fieldObject = new ByteField(tag, data, offset, length);
       }
       return fieldObject;
    }
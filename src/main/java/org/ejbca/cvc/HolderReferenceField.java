@@ -45,4 +45,15 @@ public class HolderReferenceField extends ReferenceField {
         super(CVCTagEnum.HOLDER_REFERENCE, data);
     }
 
+    /**
+     * Constructs a new instance by parsing a region of DER-encoded data
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     */
+    HolderReferenceField(byte[] data, int offset, int length) {
+        super(CVCTagEnum.HOLDER_REFERENCE, data, offset, length);
+    }
+
 }
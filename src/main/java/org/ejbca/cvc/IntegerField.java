@@ -51,8 +51,30 @@ public class IntegerField extends AbstractDataField {
         this.intValue = new BigInteger(1, data).intValue();
     }
 
+    /**
+     * Constructs a new instance by parsing a region of DER-encoded data. If
+     * 'length' is > 4 then IllegalArgumentException is thrown.
+     * 
+     * @param tag
+     * @param data
+     * @param offset
+     * @param length
+     */
+    IntegerField(CVCTagEnum tag, byte[] data, int offset, int length) {
+        super(tag);
+        if (length > 4) {
+            throw new IllegalArgumentException("Byte array too long, max is 4, was " + length);
+        }
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        this.intValue = value;
+    }
+
     public void setValue(int intValue) {
         this.intValue = intValue;
+        invalidateEncoding();
     }
 
     public int getValue() {
@@ -64,6 +86,11 @@ public class IntegerField extends AbstractDataField {
         return toByteArray(intValue);
     }
 
+    @Override
+    protected int getValueLength() {
+        return getTrimmedLength(intValue & 0xFFFFFFFFL);
+    }
+
     @Override
     protected String valueAsText() {
         return "" + intValue;
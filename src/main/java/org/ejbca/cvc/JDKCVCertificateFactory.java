@@ -12,7 +12,7 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.CRL;
@@ -21,7 +21,10 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactorySpi;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.ejbca.cvc.exception.ConstructionException;
 import org.ejbca.cvc.exception.ParseException;
@@ -30,7 +33,8 @@ import org.ejbca.cvc.exception.ParseException;
 /**
  * Class for dealing with CVC certificates.
  * <p>
- * At the moment this will deal with binary encoded CVC certificates. Only one CVC certificate can be in the input stream passed.
+ * At the moment this will deal with binary encoded CVC certificates. The input stream may hold several concatenated
+ * certificates, which are read one at a time.
  * Bouncy Castle's JDKX509CertificateFactory was used as template for this class.
  * 
  * @author Keijo Kurkinen, Swedish National Police Board
@@ -40,60 +44,178 @@ public class JDKCVCertificateFactory
     extends CertificateFactorySpi
 {
 
-    private byte[] readBytes(InputStream in) throws IOException
+    /** Largest certificate that is read from a stream. Real certificates are far smaller. */
+    private static final int MAX_CERTIFICATE_LENGTH = 0x10000;
+
+    /** Size of the buffer before any value bytes have arrived */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Reads the next certificate TLV from the stream, using its tag and length to read
+     * exactly as many bytes as it contains. The buffer grows as the bytes arrive, so a
+     * length announced in the header does not by itself cause a large allocation.
+     * @return the complete TLV, or null if the stream is at its end
+     */
+    private static byte[] readTLV(InputStream in) throws IOException, CertificateException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        int len = 0;
-        byte[] buf = new byte[512];
-        while ((len = in.read(buf)) > 0) {
-            os.write(buf, 0, len);
+        int b = in.read();
+        if (b == -1) {
+            return null;
+        }
+        // Tag (two bytes) and length (one to four bytes)
+        byte[] header = new byte[6];
+        int pos = 0;
+        header[pos++] = (byte)b;
+        if ((b & 0x1F) == 0x1F) {
+            header[pos++] = (byte)readByte(in);
+        }
+        int tag = pos == 1 ? header[0] & 0xFF : ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+        if (tag != CVCTagEnum.CV_CERTIFICATE.getValue()) {
+            throw new CertificateException("Expected tag " + CVCTagEnum.CV_CERTIFICATE + " but found 0x" + Integer.toHexString(tag));
+        }
+        b = readByte(in);
+        header[pos++] = (byte)b;
+        int length = b;
+        if (b > 0x7F) {
+            int lenBytes = b & 0x7F;
+            if (lenBytes == 0 || lenBytes > 3) {
+                throw new CertificateException("Unsupported number of length bytes: " + lenBytes);
+            }
+            length = 0;
+            for (int i = 0; i < lenBytes; i++) {
+                b = readByte(in);
+                header[pos++] = (byte)b;
+                length = (length << 8) | b;
+            }
+        }
+        if (length > MAX_CERTIFICATE_LENGTH) {
+            throw new CertificateException("Certificate length " + length + " exceeds the maximum of " + MAX_CERTIFICATE_LENGTH);
         }
-        in.close();
-        os.close();
 
-        return os.toByteArray();
+        int total = pos + length;
+        byte[] tlv = new byte[Math.min(total, INITIAL_BUFFER_SIZE)];
+        System.arraycopy(header, 0, tlv, 0, pos);
+        while (pos < total) {
+            if (pos == tlv.length) {
+                tlv = Arrays.copyOf(tlv, Math.min(total, tlv.length * 2));
+            }
+            int len = in.read(tlv, pos, tlv.length - pos);
+            if (len == -1) {
+                throw new EOFException("Unexpected end of stream, " + (total - pos) + " bytes missing");
+            }
+            pos += len;
+        }
+        return tlv;
     }
 
-    /**
-     * Generates a certificate object and initializes it with the data
-     * read from the input stream inStream.
-     */
-    public Certificate engineGenerateCertificate(
-        InputStream in) 
-        throws CertificateException
+    private static int readByte(InputStream in) throws IOException
+    {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of stream");
+        }
+        return b;
+    }
+
+    // Reads and decodes the next certificate, or returns null if the stream is at its end
+    private static Certificate readCertificate(InputStream in) throws CertificateException
     {
-    	Certificate ret = null;
-    	
         try {
-        	byte[] certData = readBytes(in);
-        	CVCertificate parsedObject = CertificateParser.parseCertificate(certData);
-        	ret = new CardVerifiableCertificate(parsedObject);
+            byte[] certData = readTLV(in);
+            if (certData == null) {
+                return null;
+            }
+            CVCertificate parsedObject = CertificateParser.parseCertificate(certData, 0, certData.length);
+            return new CardVerifiableCertificate(parsedObject);
         } catch (IOException e) {
             throw new CertificateException(e.toString());
         } catch (ParseException e) {
             throw new CertificateException(e.toString());
-		} catch (ConstructionException e) {
+        } catch (ConstructionException e) {
             throw new CertificateException(e.toString());
-		}
+        }
+    }
+
+    /**
+     * Generates a certificate object and initializes it with the data
+     * read from the input stream inStream. The stream is left positioned 
+     * after the certificate.
+     */
+    public Certificate engineGenerateCertificate(
+        InputStream in) 
+        throws CertificateException
+    {
+        Certificate ret = readCertificate(in);
+        if (ret == null) {
+            throw new CertificateException("No certificate found in stream");
+        }
         return ret;
     }
 
     /**
-     * Returns a (possibly empty) collection view of the certificate
-     * read from the given input stream inStream.
+     * Returns a (possibly empty) collection view of the certificates
+     * read from the given input stream inStream, which may hold any 
+     * number of concatenated certificates.
      */
     public Collection<Certificate> engineGenerateCertificates(
         InputStream inStream) 
         throws CertificateException
     {
-    	// CVC can only have one certificate in a stream
-        Certificate     cert = engineGenerateCertificate(inStream);
         ArrayList<Certificate> certs = new ArrayList<Certificate>();
-        certs.add(cert);
-
+        Certificate cert;
+        while ((cert = readCertificate(inStream)) != null) {
+            certs.add(cert);
+        }
         return certs;
     }
 
+    /**
+     * Returns an iterator that reads the concatenated certificates in inStream 
+     * one at a time, so that only the current certificate is held in memory.
+     * If a certificate can not be read, hasNext() returns true and next() throws 
+     * an IllegalStateException with the CertificateException as cause, which 
+     * ends the iteration. The stream is not closed.
+     */
+    public Iterator<Certificate> generateCertificateIterator(
+        final InputStream inStream)
+    {
+        return new Iterator<Certificate>() {
+            private Certificate next;
+            // Error reading the next certificate, thrown by next()
+            private CertificateException error;
+            private boolean done;
+
+            public boolean hasNext()
+            {
+                if (next == null && error == null && !done) {
+                    try {
+                        next = readCertificate(inStream);
+                        done = next == null;
+                    } catch (CertificateException e) {
+                        error = e;
+                        done = true;
+                    }
+                }
+                return next != null || error != null;
+            }
+
+            public Certificate next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (error != null) {
+                    CertificateException e = error;
+                    error = null;
+                    throw new IllegalStateException("Could not read certificate", e);
+                }
+                Certificate ret = next;
+                next = null;
+                return ret;
+            }
+        };
+    }
+
     /** 
      * CRLs are not supported by CVC. Will always throw CRLException!
      */
@@ -69,7 +69,8 @@ public class KeyFactory {
    }
 
    /**
-    * Constructs instance from a GenericPublicKeyField (i e when parsing DER-encoded data)
+    * Constructs instance from a GenericPublicKeyField (i e when parsing DER-encoded data).
+    * The parser has already resolved 0x82 to EXPONENT or COEFFICIENT_A from the OID.
     * @param genericKey
     * @return
     */
@@ -79,11 +80,9 @@ public class KeyFactory {
       try {
          OIDField oid = (OIDField)genericKey.getOptionalSubfield(CVCTagEnum.OID);
          if( oid.getValue().startsWith(CVCObjectIdentifiers.id_TA_RSA) ){
-            copyField(CVCTagEnum.COEFFICIENT_A, CVCTagEnum.EXPONENT, genericKey);
             cvcPublicKey = new PublicKeyRSA(genericKey);
          }
          else if( oid.getValue().startsWith(CVCObjectIdentifiers.id_TA_ECDSA) ){
-            copyField(CVCTagEnum.EXPONENT, CVCTagEnum.COEFFICIENT_A, genericKey);
             cvcPublicKey = new PublicKeyEC(genericKey);
          }
          else {
@@ -96,27 +95,4 @@ public class KeyFactory {
       return cvcPublicKey;
    }
 
-   /**
-    * Special helper method that deals with the problem that two different 
-    * public key tags have the same value. 
-    * TODO: This handling is subject for improvement!
-    * @param fromTag
-    * @param toTag
-    * @param generic
-    */
-   private static void copyField(CVCTagEnum fromTag, CVCTagEnum toTag, GenericPublicKeyField generic) throws ConstructionException {
-      if( fromTag.getValue()!=toTag.getValue() ){
-         throw new IllegalArgumentException("Tag values are not equal");
-      }
-      ByteField field = (ByteField)generic.getOptionalSubfield(toTag);
-      if( field==null ){
-         // OK, the field hasn't been added - check if 'fromTag' is available
-         field = (ByteField)generic.getOptionalSubfield(fromTag);
-         if( field!=null ) {
-            // Yes, copy the value and add it as 'toTag'
-            generic.addSubfield(new ByteField(toTag, field.getData()));
-         }
-      }
-   }
-
 }
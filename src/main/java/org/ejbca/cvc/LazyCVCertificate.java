@@ -0,0 +1,261 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Read-only view of a DER-encoded CVCertificate that is indexed in one linear
+ * scan, without decoding any fields. Each field is decoded the first time its
+ * getter is called and is then cached, so looking up e.g. the holder reference
+ * does not pay for decoding the public key or the authorization template.
+ * <p>
+ * The getters return the same types as CVCertificateBody, and throw NoSuchFieldException
+ * for the same absent fields. A field that can not be decoded throws ParseException, as
+ * the full parse would have. Objects returned from
+ * here are not attached to a CVCertificateBody; use getCertificate() when the
+ * complete certificate tree is needed.
+ * <p>
+ * The view references the parsed array, which must not be modified while the view
+ * is in use. Instances are not thread safe.
+ *
+ * @version $Id$
+ * @see CertificateParser#parseLazyCertificate(byte[])
+ */
+public class LazyCVCertificate {
+
+   /** Fields that may occur in the body, in encoding order */
+   private static final CVCTagEnum[] bodyFields = new CVCTagEnum[] {
+      CVCTagEnum.PROFILE_IDENTIFIER,
+      CVCTagEnum.CA_REFERENCE,
+      CVCTagEnum.PUBLIC_KEY,
+      CVCTagEnum.HOLDER_REFERENCE,
+      CVCTagEnum.HOLDER_AUTH_TEMPLATE,
+      CVCTagEnum.EFFECTIVE_DATE,
+      CVCTagEnum.EXPIRATION_DATE,
+      CVCTagEnum.CERTIFICATE_EXTENSIONS
+   };
+
+   private final byte[] data;
+   private final int offset;
+   private final int length;
+
+   private int bodyOffset;
+   private int bodyLength;
+   private int signatureOffset = -1;
+   private int signatureLength;
+
+   // Start and total length of each body field TLV, indexed as bodyFields
+   private final int[] fieldOffsets = new int[bodyFields.length];
+   private final int[] fieldLengths = new int[bodyFields.length];
+   private final CVCObject[] fields = new CVCObject[bodyFields.length];
+
+   private CVCertificate certificate;
+
+   /**
+    * Scans the certificate at the reader's position and records where its fields are
+    * @param reader
+    * @throws ParseException if the data is not a well-formed CVCertificate
+    */
+   LazyCVCertificate(final TLVReader reader) throws ParseException {
+      this.data = reader.getBuffer();
+      this.offset = reader.getPosition();
+      Arrays.fill(fieldOffsets, -1);
+
+      final int certEnd = readHeader(reader, reader.getEnd(), CVCTagEnum.CV_CERTIFICATE);
+      this.length = certEnd - offset;
+      this.bodyOffset = -1;
+      while( reader.getPosition() < certEnd ){
+         final int start = reader.getPosition();
+         final CVCTagEnum tag = CertificateParser.findTagFromValue(reader.readTag(certEnd));
+         final int valueLength = reader.readLength(certEnd);
+         if( tag==CVCTagEnum.CERTIFICATE_BODY && bodyOffset==-1 ){
+            bodyOffset = start;
+            bodyLength = reader.getPosition() + valueLength - start;
+            indexBody(reader, reader.getPosition() + valueLength);
+         }
+         else if( tag==CVCTagEnum.SIGNATURE && signatureOffset==-1 ){
+            signatureOffset = reader.getPosition();
+            signatureLength = valueLength;
+            reader.skip(valueLength);
+         }
+         else {
+            throw new ParseException("Field " + tag + " not allowed, or already present, in " + CVCTagEnum.CV_CERTIFICATE);
+         }
+      }
+      if( bodyOffset==-1 ){
+         throw new ParseException("Missing " + CVCTagEnum.CERTIFICATE_BODY);
+      }
+   }
+
+   // Records the position of each body field without descending into them
+   private void indexBody(final TLVReader reader, final int bodyEnd) throws ParseException {
+      while( reader.getPosition() < bodyEnd ){
+         final int start = reader.getPosition();
+         final CVCTagEnum tag = CertificateParser.findTagFromValue(reader.readTag(bodyEnd));
+         final int valueLength = reader.readLength(bodyEnd);
+         reader.skip(valueLength);
+         final int index = indexOf(tag);
+         if( index==-1 || fieldOffsets[index]!=-1 ){
+            throw new ParseException("Field " + tag + " not allowed, or already present, in " + CVCTagEnum.CERTIFICATE_BODY);
+         }
+         fieldOffsets[index] = start;
+         fieldLengths[index] = reader.getPosition() - start;
+      }
+   }
+
+   // Reads the tag and length of a sequence and returns the position where it ends
+   private static int readHeader(final TLVReader reader, final int limit, final CVCTagEnum expectedTag) throws ParseException {
+      final CVCTagEnum tag = CertificateParser.findTagFromValue(reader.readTag(limit));
+      if( tag!=expectedTag ){
+         throw new ParseException("Expected first tag " + expectedTag + " but found " + tag);
+      }
+      final int valueLength = reader.readLength(limit);
+      return reader.getPosition() + valueLength;
+   }
+
+   private static int indexOf(final CVCTagEnum tag) {
+      for( int i=0; i<bodyFields.length; i++ ){
+         if( bodyFields[i]==tag ){
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Decodes a body field on first access, or returns null if the field is absent
+    * @throws ParseException if the field can not be decoded
+    */
+   private CVCObject getField(final CVCTagEnum tag) throws ParseException {
+      final int index = indexOf(tag);
+      if( fields[index]==null && fieldOffsets[index]!=-1 ){
+         try {
+            fields[index] = CertificateParser.decode(new TLVReader(data, fieldOffsets[index], fieldLengths[index]), tag);
+         }
+         catch( ConstructionException e ){
+            throw new ParseException("Could not decode " + tag, e);
+         }
+      }
+      return fields[index];
+   }
+
+   // Same as getField but throws if the field is absent
+   private CVCObject getMandatoryField(final CVCTagEnum tag) throws NoSuchFieldException, ParseException {
+      final CVCObject field = getField(tag);
+      if( field==null ){
+         throw new NoSuchFieldException("Could not find subfield " + tag);
+      }
+      return field;
+   }
+
+   /**
+    * Returns 'Certificate Authority Reference'
+    * Since this field is optional in a CVCRequest this method may return null
+    * @return
+    */
+   public CAReferenceField getAuthorityReference() throws NoSuchFieldException, ParseException {
+      return (CAReferenceField)getField(CVCTagEnum.CA_REFERENCE);
+   }
+
+   /**
+    * Returns 'Certificate Holder Reference'
+    * @return
+    */
+   public HolderReferenceField getHolderReference() throws NoSuchFieldException, ParseException {
+      return (HolderReferenceField)getMandatoryField(CVCTagEnum.HOLDER_REFERENCE);
+   }
+
+   /**
+    * Returns 'Effective Date'
+    * @return
+    */
+   public Date getValidFrom() throws NoSuchFieldException, ParseException {
+      return ((DateField)getMandatoryField(CVCTagEnum.EFFECTIVE_DATE)).getDate();
+   }
+
+   /**
+    * Returns 'Expiration Date'
+    * @return
+    */
+   public Date getValidTo() throws NoSuchFieldException, ParseException {
+      return ((DateField)getMandatoryField(CVCTagEnum.EXPIRATION_DATE)).getDate();
+   }
+
+   /**
+    * Returns the public key
+    * @return
+    */
+   public CVCPublicKey getPublicKey() throws NoSuchFieldException, ParseException {
+      return (CVCPublicKey)getMandatoryField(CVCTagEnum.PUBLIC_KEY);
+   }
+
+   /**
+    * Returns CVCAuthorizationTemplate
+    * @return
+    */
+   public CVCAuthorizationTemplate getAuthorizationTemplate() throws NoSuchFieldException, ParseException {
+      return (CVCAuthorizationTemplate)getMandatoryField(CVCTagEnum.HOLDER_AUTH_TEMPLATE);
+   }
+
+   /**
+    * Returns 'Certificate Extensions'
+    * @return
+    */
+   public CVCertificateExtensions getCertificateExtensions() throws NoSuchFieldException, ParseException {
+      return (CVCertificateExtensions)getMandatoryField(CVCTagEnum.CERTIFICATE_EXTENSIONS);
+   }
+
+   /**
+    * Returns the signature
+    * @return
+    */
+   public byte[] getSignature() throws NoSuchFieldException {
+      if( signatureOffset==-1 ){
+         throw new NoSuchFieldException("Could not find subfield " + CVCTagEnum.SIGNATURE);
+      }
+      return Arrays.copyOfRange(data, signatureOffset, signatureOffset + signatureLength);
+   }
+
+   /**
+    * Returns the data To Be Signed, that is the encoded body exactly as it was parsed
+    * @return
+    */
+   public byte[] getTBS() {
+      return Arrays.copyOfRange(data, bodyOffset, bodyOffset + bodyLength);
+   }
+
+   /**
+    * Returns the complete certificate exactly as it was parsed
+    * @return
+    */
+   public byte[] getDEREncoded() {
+      return Arrays.copyOfRange(data, offset, offset + length);
+   }
+
+   /**
+    * Decodes the complete certificate. The result is cached.
+    * @return
+    */
+   public CVCertificate getCertificate() throws ParseException, ConstructionException {
+      if( certificate==null ){
+         certificate = CertificateParser.parseCertificate(data, offset, length);
+      }
+      return certificate;
+   }
+
+}
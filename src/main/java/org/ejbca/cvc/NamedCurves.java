@@ -0,0 +1,102 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.security.spec.ECParameterSpec;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECNamedCurveSpec;
+
+/**
+ * Recognizes the explicit domain parameters of well-known curves, so that all keys
+ * on such a curve share one ECParameterSpec. The shared specs are ECNamedCurveSpecs,
+ * which carry the curve name for providers that handle named curves specially.
+ * <p>
+ * The parameters are compared as they are encoded in a public key, without creating
+ * any curve objects. Leading zero bytes are ignored.
+ *
+ * @version $Id$
+ */
+final class NamedCurves {
+
+   /** The brainpool curves of RFC 5639, and the NIST P-curves */
+   private static final String[] NAMES = {
+      "brainpoolP160r1", "brainpoolP160t1", "brainpoolP192r1", "brainpoolP192t1",
+      "brainpoolP224r1", "brainpoolP224t1", "brainpoolP256r1", "brainpoolP256t1",
+      "brainpoolP320r1", "brainpoolP320t1", "brainpoolP384r1", "brainpoolP384t1",
+      "brainpoolP512r1", "brainpoolP512t1",
+      "secp192r1", "secp224r1", "secp256r1", "secp384r1", "secp521r1"
+   };
+
+   private static final Curve[] CURVES = new Curve[NAMES.length];
+   static {
+      for( int i=0; i<NAMES.length; i++ ){
+         final ECNamedCurveParameterSpec bcSpec = ECNamedCurveTable.getParameterSpec(NAMES[i]);
+         CURVES[i] = new Curve(new ECNamedCurveSpec(NAMES[i], bcSpec.getCurve(), bcSpec.getG(), bcSpec.getN(), bcSpec.getH(), bcSpec.getSeed()));
+      }
+   }
+
+   private NamedCurves() {
+   }
+
+   /**
+    * Returns the shared spec of a well-known curve with the given parameters
+    * @return the spec, or null if the parameters are not those of a known curve
+    */
+   static ECParameterSpec find(final ByteField modulus, final ByteField coefficientA, final ByteField coefficientB,
+         final ByteField basePointG, final ByteField order, final IntegerField cofactor) {
+      for( Curve curve : CURVES ){
+         final EncodedDomainParameters encoded = curve.encoded;
+         if( encoded.cofactor==cofactor.getValue()
+               && matches(encoded.modulus, modulus) && matches(encoded.coefficientA, coefficientA)
+               && matches(encoded.coefficientB, coefficientB) && matches(encoded.order, order)
+               && matches(encoded.basePointG, basePointG) ){
+            return curve.spec;
+         }
+      }
+      return null;
+   }
+
+   // Compares trimmed reference bytes to a field's data, ignoring leading zeroes in the data
+   private static boolean matches(final byte[] reference, final ByteField field) {
+      final byte[] buffer = field.getDataBuffer();
+      int offset = field.getDataOffset();
+      int length = field.getDataLength();
+      while( length>reference.length && buffer[offset]==0 ){
+         offset++;
+         length--;
+      }
+      if( length!=reference.length ){
+         return false;
+      }
+      for( int i=length-1; i>=0; i-- ){
+         if( buffer[offset + i]!=reference[i] ){
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /** A curve and its parameters, encoded as in a PublicKeyEC */
+   private static final class Curve {
+      final ECParameterSpec spec;
+      final EncodedDomainParameters encoded;
+
+      Curve(final ECParameterSpec spec) {
+         this.spec = spec;
+         this.encoded = new EncodedDomainParameters(spec);
+      }
+   }
+
+}
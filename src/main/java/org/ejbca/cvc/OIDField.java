@@ -12,23 +12,27 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
-import java.io.IOException;
-
-import org.bouncycastle.asn1.ASN1Encoding;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-import org.bouncycastle.asn1.ASN1TaggedObject;
-import org.bouncycastle.asn1.DEROctetString;
-import org.bouncycastle.asn1.DERTaggedObject;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Represents Object Identifier
+ * <p>
+ * The value is encoded and decoded directly as base-128 subidentifiers, and the
+ * encoding is kept with the instance. The values of decoded OIDs are interned, see intern().
  * 
  * @author Keijo Kurkinen, Swedish National Police Board
  */
 public class OIDField extends AbstractDataField {
 
     private static final long serialVersionUID = 5212215839749666908L;
+
+    /** Number of slots in the cache of decoded OIDs that are not in CVCObjectIdentifiers */
+    private static final int CACHE_SIZE = 256;
+    private static final AtomicReferenceArray<Value> CACHE = new AtomicReferenceArray<Value>(CACHE_SIZE);
+
     private String id;
+    private transient byte[] encoded;
 
     OIDField() {
         super(CVCTagEnum.OID);
@@ -38,10 +42,12 @@ public class OIDField extends AbstractDataField {
      * Constructs a new instance from a String (the oid value)
      * 
      * @param id
+     * @throws IllegalArgumentException if 'id' is not a valid OID
      */
     OIDField(String id) {
         this();
         this.id = id;
+        this.encoded = encodeValue(id);
     }
 
     /**
@@ -50,54 +56,185 @@ public class OIDField extends AbstractDataField {
      * @param data
      */
     OIDField(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Constructs a new instance by parsing a region of DER-encoded data
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IllegalArgumentException if the data is not a valid OID encoding
+     */
+    OIDField(byte[] data, int offset, int length) {
         this();
-        // For BC 1.46/1.47
-        // this.id = ASN1ObjectIdentifier.getInstance(new DERTaggedObject(true,
-        // 0, new DEROctetString(data)), false).getId();
-        // For BC 1.45
-        // this.id = DERObjectIdentifier.getInstance(new
-        // DEROctetString(data)).getId();
-
-        // For all BC versions
-        // Create an octet string, generate it's encoding and replace the tag at
-        // the start with the object identifier tag. You could then recover the
-        // OID
-        // using ASN1Object.fromByteArray().
-        // BC 1.47 changed to ASN1Primitive though, so no reason to keep BC 1.45
-        // compatibility, since it will not work anyway.
-        //this.id = ASN1ObjectIdentifier.getInstance(new DERTaggedObject(true, 0, new DEROctetString(data)), false).getId();
-        // Suggested by Peter Dettman of BC to avoid future issues. https://github.com/primekeydevs/cert-cvc/issues/3
-        ASN1TaggedObject pseudo = new DERTaggedObject(false, 0, new DEROctetString(data));
-        try {
-            ASN1TaggedObject parsed = ASN1TaggedObject.getInstance(pseudo.getEncoded(ASN1Encoding.DER));
-            this.id = ASN1ObjectIdentifier.getInstance(parsed, false).getId();
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Data can not be encoded as DER (getEncoded(ASN1Encoding.DER)), this should indicate an internal bug?");
+        this.id = decodeValue(data, offset, length);
+        this.encoded = new byte[length];
+        System.arraycopy(data, offset, encoded, 0, length);
+    }
+
+    // Constructs a new instance sharing a decoded value
+    private OIDField(Value value) {
+        this();
+        this.id = value.id;
+        this.encoded = value.encoded;
+    }
+
+    /**
+     * Constructs a new instance for a region of DER-encoded data, sharing the decoded
+     * value with other instances of the same OID. The values of the OIDs in
+     * CVCObjectIdentifiers are always kept, and other OIDs are kept in a small cache
+     * where a newly decoded OID replaces any OID in the same slot.
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws IllegalArgumentException if the data is not a valid OID encoding
+     */
+    static OIDField intern(byte[] data, int offset, int length) {
+        for (Value known : Known.VALUES) {
+            if (known.encodingEquals(data, offset, length)) {
+                return new OIDField(known);
+            }
+        }
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        Value value = CACHE.get(slot);
+        if (value == null || !value.encodingEquals(data, offset, length)) {
+            final byte[] encoded = new byte[length];
+            System.arraycopy(data, offset, encoded, 0, length);
+            value = new Value(decodeValue(data, offset, length), encoded);
+            CACHE.set(slot, value);
         }
+        return new OIDField(value);
     }
 
     public String getValue() {
         return id;
     }
 
+    /**
+     * Returns the encoded value, without tag and length. The array is shared and must not be modified.
+     */
     @Override
     protected byte[] getEncoded() {
-        byte[] encoding = null;
+        if (encoded == null) {
+            // Not serialized
+            encoded = encodeValue(id);
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes an OID as base-128 subidentifiers, the first two arcs combined into one
+     * 
+     * @param id
+     * @return
+     * @throws IllegalArgumentException if 'id' is not a valid OID
+     */
+    static byte[] encodeValue(String id) {
+        final String[] arcs = id.split("\\.", -1);
+        if (arcs.length < 2) {
+            throw new IllegalArgumentException("OID must have at least two arcs: " + id);
+        }
+        final BigInteger[] values = new BigInteger[arcs.length - 1];
         try {
-            // This will give the entire field in encoded format (starting with
-            // tag and length)
-            byte[] derField = new ASN1ObjectIdentifier(id).getEncoded();
-
-            // Skip the first two bytes, they will be added later. Note: In
-            // theory, Length could
-            // involve more than one byte, but for an OID it seems highly
-            // unlikely.
-            encoding = new byte[derField.length - 2];
-            System.arraycopy(derField, 2, encoding, 0, encoding.length);
-            return encoding;
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+            final int first = Integer.parseInt(arcs[0]);
+            final BigInteger second = new BigInteger(arcs[1]);
+            if (first < 0 || first > 2 || second.signum() < 0 || (first < 2 && second.compareTo(BigInteger.valueOf(40)) >= 0)) {
+                throw new IllegalArgumentException("Invalid first arcs in OID: " + id);
+            }
+            values[0] = second.add(BigInteger.valueOf(40L * first));
+            for (int i = 2; i < arcs.length; i++) {
+                values[i - 1] = new BigInteger(arcs[i]);
+                if (values[i - 1].signum() < 0) {
+                    throw new IllegalArgumentException("Negative arc in OID: " + id);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid OID: " + id, e);
+        }
+
+        int length = 0;
+        for (BigInteger value : values) {
+            length += Math.max(1, (value.bitLength() + 6) / 7);
+        }
+        final byte[] result = new byte[length];
+        int pos = 0;
+        for (BigInteger value : values) {
+            final int groups = Math.max(1, (value.bitLength() + 6) / 7);
+            if (value.bitLength() < 64) {
+                final long v = value.longValue();
+                for (int g = groups - 1; g >= 0; g--) {
+                    result[pos++] = (byte) ((v >>> (7 * g)) & 0x7F | (g > 0 ? 0x80 : 0));
+                }
+            } else {
+                for (int g = groups - 1; g >= 0; g--) {
+                    result[pos++] = (byte) (value.shiftRight(7 * g).intValue() & 0x7F | (g > 0 ? 0x80 : 0));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes base-128 subidentifiers to the dotted form of an OID
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws IllegalArgumentException if the data is not a valid OID encoding
+     */
+    static String decodeValue(byte[] data, int offset, int length) {
+        if (length == 0 || (data[offset + length - 1] & 0x80) != 0) {
+            throw new IllegalArgumentException("Truncated OID encoding");
+        }
+        final StringBuilder result = new StringBuilder(length * 3);
+        final int end = offset + length;
+        int pos = offset;
+        boolean first = true;
+        while (pos < end) {
+            if ((data[pos] & 0xFF) == 0x80) {
+                throw new IllegalArgumentException("OID subidentifier is not minimally encoded");
+            }
+            // Subidentifiers of up to 8 bytes fit in a long, longer ones need a BigInteger
+            final int start = pos;
+            long value = 0;
+            while ((data[pos] & 0x80) != 0 && pos - start < 8) {
+                value = (value << 7) | (data[pos++] & 0x7F);
+            }
+            BigInteger big = null;
+            if ((data[pos] & 0x80) != 0) {
+                big = BigInteger.valueOf(value);
+                while ((data[pos] & 0x80) != 0) {
+                    big = big.shiftLeft(7).or(BigInteger.valueOf(data[pos++] & 0x7F));
+                }
+                big = big.shiftLeft(7).or(BigInteger.valueOf(data[pos++] & 0x7F));
+            } else {
+                value = (value << 7) | data[pos++];
+            }
+
+            if (first) {
+                // The first two arcs are encoded as 40*i1 + i2, where i1 is at most 2
+                first = false;
+                if (big != null) {
+                    result.append("2.").append(big.subtract(BigInteger.valueOf(80)));
+                } else if (value < 80) {
+                    result.append(value / 40).append('.').append(value % 40);
+                } else {
+                    result.append("2.").append(value - 80);
+                }
+            } else {
+                result.append('.').append(big != null ? big.toString() : Long.toString(value));
+            }
         }
+        return result.toString();
     }
 
     @Override
@@ -118,4 +255,51 @@ public class OIDField extends AbstractDataField {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    /** A decoded OID, which is immutable and shared by the instances of intern() */
+    private static final class Value {
+        final String id;
+        final byte[] encoded;
+
+        Value(String id, byte[] encoded) {
+            this.id = id;
+            this.encoded = encoded;
+        }
+
+        Value(OIDField oid) {
+            this(oid.getValue(), oid.getEncoded().clone());
+        }
+
+        // Checks if the value is encoded as in the region
+        boolean encodingEquals(byte[] data, int offset, int length) {
+            if (encoded.length != length) {
+                return false;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (encoded[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** The values of the OIDs in CVCObjectIdentifiers, loaded when an OID is first interned */
+    private static final class Known {
+        static final Value[] VALUES = {
+            new Value(CVCObjectIdentifiers.id_TA_ECDSA_SHA_256), new Value(CVCObjectIdentifiers.id_TA_ECDSA_SHA_224),
+            new Value(CVCObjectIdentifiers.id_TA_ECDSA_SHA_384), new Value(CVCObjectIdentifiers.id_TA_ECDSA_SHA_512),
+            new Value(CVCObjectIdentifiers.id_TA_ECDSA_SHA_1),
+            new Value(CVCObjectIdentifiers.id_TA_RSA_v1_5_SHA_256), new Value(CVCObjectIdentifiers.id_TA_RSA_v1_5_SHA_512),
+            new Value(CVCObjectIdentifiers.id_TA_RSA_v1_5_SHA_1), new Value(CVCObjectIdentifiers.id_TA_RSA_PSS_SHA_256),
+            new Value(CVCObjectIdentifiers.id_TA_RSA_PSS_SHA_512), new Value(CVCObjectIdentifiers.id_TA_RSA_PSS_SHA_1),
+            new Value(CVCObjectIdentifiers.id_EAC_ePassport), new Value(CVCObjectIdentifiers.id_EAC_roles_AT),
+            new Value(CVCObjectIdentifiers.id_EAC_roles_ST)
+        };
+    }
+
 }
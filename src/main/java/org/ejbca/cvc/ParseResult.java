@@ -0,0 +1,75 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Outcome of parsing one certificate in a batch: either the certificate
+ * or the exception that prevented it from being parsed.
+ *
+ * @version $Id$
+ * @see CertificateParser#parseAll(java.util.List)
+ */
+public final class ParseResult {
+
+   private final CVCertificate certificate;
+   private final ParseException exception;
+
+   ParseResult(final CVCertificate certificate) {
+      this.certificate = certificate;
+      this.exception = null;
+   }
+
+   ParseResult(final ParseException exception) {
+      this.certificate = null;
+      this.exception = exception;
+   }
+
+   /**
+    * Returns true if the certificate was parsed
+    * @return
+    */
+   public boolean isSuccess() {
+      return certificate!=null;
+   }
+
+   /**
+    * Returns the parsed certificate, or null if parsing failed
+    * @return
+    */
+   public CVCertificate getCertificate() {
+      return certificate;
+   }
+
+   /**
+    * Returns the certificate, or throws the exception from parsing it
+    * @return
+    * @throws ParseException
+    */
+   public CVCertificate getCertificateOrThrow() throws ParseException {
+      if( exception!=null ){
+         throw exception;
+      }
+      return certificate;
+   }
+
+   /**
+    * Returns the reason why parsing failed, or null if it succeeded
+    * @return
+    */
+   public ParseException getException() {
+      return exception;
+   }
+
+}
@@ -0,0 +1,118 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ejbca.cvc.util.BCECUtil;
+
+/**
+ * Finds the signature algorithms of a provider that produce and accept ECDSA signatures
+ * in the plain format r||s of the CVCs, such as SHA256WITHPLAIN-ECDSA and SHA256WITHCVC-ECDSA
+ * in BouncyCastle. Signing and verifying with these avoids converting to and from the X9.62
+ * format. Providers without them, e.g. many HSM providers, are used with the X9.62 algorithms
+ * and BCECUtil.
+ * <p>
+ * What each provider supports is looked up once per algorithm. A provider that is replaced
+ * by another with the same name is looked up again.
+ *
+ * @version $Id$
+ */
+final class PlainECDSA {
+
+   /** Suffixes of the plain variants of SHAxxxWITHECDSA, in order of preference */
+   private static final String[] PLAIN_SUFFIXES = { "WITHPLAIN-ECDSA", "WITHCVC-ECDSA" };
+   private static final String ECDSA_SUFFIX = "WITHECDSA";
+
+   /** Marks algorithms that a provider has no plain variant of */
+   private static final String NONE = "";
+
+   private static final ConcurrentHashMap<String, Algorithms> PROVIDERS = new ConcurrentHashMap<String, Algorithms>();
+
+   private PlainECDSA() {
+   }
+
+   /**
+    * Returns the name of the provider's algorithm that gives plain signatures for an ECDSA algorithm
+    * @param algorithm name as given by AlgorithmUtil, e.g. SHA256WITHECDSA
+    * @param provider name of the provider
+    * @return the name of the plain variant, or null if 'algorithm' is not ECDSA or the provider lacks the variant
+    */
+   static String getPlainAlgorithm(final String algorithm, final String provider) {
+      if( provider==null || !algorithm.regionMatches(true, algorithm.length() - ECDSA_SUFFIX.length(), ECDSA_SUFFIX, 0, ECDSA_SUFFIX.length()) ){
+         return null;
+      }
+      final Provider current = Security.getProvider(provider);
+      if( current==null ){
+         return null;
+      }
+      Algorithms algorithms = PROVIDERS.get(provider);
+      if( algorithms==null || algorithms.provider!=current ){
+         algorithms = new Algorithms(current);
+         PROVIDERS.put(provider, algorithms);
+      }
+      return algorithms.getPlainAlgorithm(algorithm);
+   }
+
+   /**
+    * Returns the name of the provider's algorithm for verifying a plain signature with a key.
+    * Signatures that are not padded to the length of the curve order are left to be converted,
+    * since the plain algorithms reject them.
+    * @param algorithm name as given by AlgorithmUtil, e.g. SHA256WITHECDSA
+    * @param provider name of the provider
+    * @param key
+    * @param signature in the CVC format
+    * @return the name of the plain variant, or null if the signature must be converted to X9.62
+    */
+   static String getPlainAlgorithm(final String algorithm, final String provider, final PublicKey key, final byte[] signature) {
+      if( signature.length==0 || signature.length!=2*BCECUtil.getOrderLength(key) ){
+         return null;
+      }
+      return getPlainAlgorithm(algorithm, provider);
+   }
+
+   /** The plain variants supported by one provider instance */
+   private static final class Algorithms {
+      final Provider provider;
+      private final ConcurrentHashMap<String, String> plainNames = new ConcurrentHashMap<String, String>();
+
+      Algorithms(final Provider provider) {
+         this.provider = provider;
+      }
+
+      String getPlainAlgorithm(final String algorithm) {
+         String plain = plainNames.get(algorithm);
+         if( plain==null ){
+            plain = find(algorithm);
+            plainNames.put(algorithm, plain);
+         }
+         return plain==NONE ? null : plain;
+      }
+
+      private String find(final String algorithm) {
+         final String digest = algorithm.substring(0, algorithm.length() - ECDSA_SUFFIX.length()).toUpperCase(Locale.ROOT);
+         for( String suffix : PLAIN_SUFFIXES ){
+            final String name = digest + suffix;
+            if( provider.getService("Signature", name)!=null ){
+               return name;
+            }
+         }
+         return NONE;
+      }
+   }
+
+}
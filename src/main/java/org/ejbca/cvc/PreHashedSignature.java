@@ -0,0 +1,122 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.util.Locale;
+
+/**
+ * Describes how to sign a locally computed digest instead of the data itself, with
+ * NONEwithECDSA or NONEwithRSA. Only the digest is then passed to the signature provider,
+ * which saves bandwidth with network-attached HSMs.
+ * <p>
+ * For ECDSA the input to NONEwithECDSA is the digest. For RSA PKCS#1 v1.5 it is the DER
+ * encoded DigestInfo, that is the digest preceded by a fixed prefix for each hash algorithm.
+ * RSA-PSS can not be computed this way.
+ *
+ * @version $Id$
+ */
+final class PreHashedSignature {
+
+   private static final PreHashedSignature[] DIGESTS = {
+      new PreHashedSignature("SHA224", "SHA-224", new byte[] {
+         0x30, 0x2d, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte)0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x04, 0x05, 0x00, 0x04, 0x1c }),
+      new PreHashedSignature("SHA256", "SHA-256", new byte[] {
+         0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte)0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 }),
+      new PreHashedSignature("SHA384", "SHA-384", new byte[] {
+         0x30, 0x41, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte)0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x02, 0x05, 0x00, 0x04, 0x30 }),
+      new PreHashedSignature("SHA512", "SHA-512", new byte[] {
+         0x30, 0x51, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte)0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x03, 0x05, 0x00, 0x04, 0x40 }),
+      new PreHashedSignature("SHA1", "SHA-1", new byte[] {
+         0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14 }),
+   };
+
+   private static final String NONE_WITH_ECDSA = "NONEWITHECDSA";
+   private static final String NONE_WITH_RSA = "NONEWITHRSA";
+
+   private final String prefix;
+   private final String digestAlgorithm;
+   private final byte[] digestInfoPrefix;
+
+   private PreHashedSignature(final String prefix, final String digestAlgorithm, final byte[] digestInfoPrefix) {
+      this.prefix = prefix;
+      this.digestAlgorithm = digestAlgorithm;
+      this.digestInfoPrefix = digestInfoPrefix;
+   }
+
+   /**
+    * Returns the MessageDigest algorithm for a signature algorithm
+    * @param algorithm e.g. SHA256WITHECDSA or SHA1WITHRSA
+    * @return the digest algorithm, e.g. SHA-256, or null if the signature algorithm
+    *         can not be computed over a digest
+    */
+   static String getDigestAlgorithm(final String algorithm) {
+      final PreHashedSignature digest = find(algorithm);
+      return digest!=null ? digest.digestAlgorithm : null;
+   }
+
+   /**
+    * Returns the algorithm that signs a digest instead of the data, i.e. NONEWITHECDSA or NONEWITHRSA
+    * @param algorithm e.g. SHA256WITHECDSA or SHA1WITHRSA
+    * @return the algorithm name, or null if the signature algorithm can not be computed over a digest
+    */
+   static String getSignatureAlgorithm(final String algorithm) {
+      final PreHashedSignature digest = find(algorithm);
+      if( digest==null ){
+         return null;
+      }
+      return isECDSA(algorithm) ? NONE_WITH_ECDSA : NONE_WITH_RSA;
+   }
+
+   /**
+    * Returns the input to the algorithm of getSignatureAlgorithm() for a digest
+    * @param algorithm e.g. SHA256WITHECDSA or SHA1WITHRSA
+    * @param digest computed with the algorithm of getDigestAlgorithm()
+    * @return the digest for ECDSA, or the DER encoded DigestInfo for RSA
+    */
+   static byte[] getSignatureInput(final String algorithm, final byte[] digest) {
+      final PreHashedSignature digestInfo = find(algorithm);
+      if( digestInfo==null ){
+         throw new IllegalArgumentException("Signature algorithm " + algorithm + " can not be computed over a digest");
+      }
+      if( isECDSA(algorithm) ){
+         return digest;
+      }
+      final byte[] prefix = digestInfo.digestInfoPrefix;
+      if( digest.length!=prefix[prefix.length - 1] ){
+         throw new IllegalArgumentException("Digest length " + digest.length + " does not match " + algorithm);
+      }
+      final byte[] input = new byte[prefix.length + digest.length];
+      System.arraycopy(prefix, 0, input, 0, prefix.length);
+      System.arraycopy(digest, 0, input, prefix.length, digest.length);
+      return input;
+   }
+
+   // Finds the digest of ECDSA and RSA PKCS#1 v1.5 algorithms
+   private static PreHashedSignature find(final String algorithm) {
+      final String name = algorithm.toUpperCase(Locale.ROOT);
+      if( !name.endsWith("WITHRSA") && !isECDSA(name) ){
+         return null;
+      }
+      for( PreHashedSignature digest : DIGESTS ){
+         if( name.startsWith(digest.prefix) ){
+            return digest;
+         }
+      }
+      return null;
+   }
+
+   private static boolean isECDSA(final String algorithm) {
+      return algorithm.toUpperCase(Locale.ROOT).endsWith("WITHECDSA");
+   }
+
+}
@@ -0,0 +1,230 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.io.IOException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.util.BCECUtil;
+
+/**
+ * A certificate that is ready to be signed, for issuing certificates in two phases:
+ * the bodies are prepared first, and the signatures are made separately, e.g. in batches
+ * by an HSM, and attached afterwards:
+ * <pre>
+ *    PreparedCertificate prepared = CertificateGenerator.prepareCertificate(body, "SHA256WithECDSA", caKey);
+ *    byte[] signature = ... // sign prepared.getTBS(), or prepared.getSignatureInput()
+ *    CVCertificate cert = prepared.attachSignature(signature);
+ * </pre>
+ * The TBS is encoded once, and its digest is computed once when first requested.
+ * A signature can be attached once, and only if the body has not been modified since
+ * the certificate was prepared.
+ * Instances may be handed between threads, but should not be used by several at once.
+ *
+ * @see CertificateGenerator#createCertificates(List, BatchSigner)
+ * @version $Id$
+ */
+public final class PreparedCertificate {
+
+   private final CVCertificate certificate;
+   private final String algorithmName;
+   private final String algorithm;
+   private final int orderLength;
+   private final byte[] tbs;
+   private volatile byte[] digest;
+
+   /**
+    * Creates an instance, see CertificateGenerator.prepareCertificate()
+    */
+   PreparedCertificate(final CVCertificateBody body, final String algorithmName, final Key signerKey) throws ConstructionException {
+      this.certificate = new CVCertificate(body);
+      this.algorithmName = algorithmName;
+      this.algorithm = AlgorithmUtil.convertAlgorithmNameToCVC(algorithmName);
+      this.orderLength = signerKey!=null ? BCECUtil.getOrderLength(signerKey) : 0;
+      this.tbs = certificate.getTBS();
+   }
+
+   /**
+    * Returns the certificate, which has no signature until one is attached. The body must
+    * not be modified, or no signature can be attached.
+    * @return
+    */
+   public CVCertificate getCertificate() {
+      return certificate;
+   }
+
+   /**
+    * Returns the signature algorithm, as given when the certificate was prepared
+    * @return
+    */
+   public String getAlgorithmName() {
+      return algorithmName;
+   }
+
+   /**
+    * Returns the data To Be Signed. The array is shared and must not be modified.
+    * @return
+    */
+   public byte[] getTBS() {
+      return tbs;
+   }
+
+   /**
+    * Returns the digest algorithm of the signature algorithm
+    * @return e.g. SHA-256, or null if the signature can only be computed over the TBS, as with RSA-PSS
+    */
+   public String getDigestAlgorithm() {
+      return PreHashedSignature.getDigestAlgorithm(algorithm);
+   }
+
+   /**
+    * Returns the algorithm for signing getSignatureInput() instead of the TBS
+    * @return NONEWITHECDSA, NONEWITHRSA, or null if the signature can only be computed over the TBS
+    */
+   public String getPreHashedAlgorithm() {
+      return PreHashedSignature.getSignatureAlgorithm(algorithm);
+   }
+
+   /**
+    * Returns the digest of the TBS. The array is shared and must not be modified.
+    * @return the digest, or null if getDigestAlgorithm() is null
+    * @throws NoSuchAlgorithmException if no provider has the digest algorithm
+    */
+   public byte[] getDigest() throws NoSuchAlgorithmException {
+      byte[] result = digest;
+      if( result==null ){
+         final String digestAlgorithm = getDigestAlgorithm();
+         if( digestAlgorithm==null ){
+            return null;
+         }
+         try {
+            result = SignatureCache.getMessageDigest(digestAlgorithm, null).digest(tbs);
+         }
+         catch( NoSuchProviderException e ){
+            // Not thrown without a provider name
+            throw new NoSuchAlgorithmException(e);
+         }
+         digest = result;
+      }
+      return result;
+   }
+
+   /**
+    * Returns the data to sign with getPreHashedAlgorithm(): the digest for ECDSA, or the DER
+    * encoded DigestInfo for RSA
+    * @return the data, or null if getPreHashedAlgorithm() is null
+    * @throws NoSuchAlgorithmException if no provider has the digest algorithm
+    */
+   public byte[] getSignatureInput() throws NoSuchAlgorithmException {
+      final byte[] result = getDigest();
+      return result!=null ? PreHashedSignature.getSignatureInput(algorithm, result) : null;
+   }
+
+   /**
+    * Sets the signature of the certificate, converting ECDSA signatures from X9.62 to the
+    * CVC format, padded to the order length of the signer key given when preparing
+    * @param signature as produced by the JCA signature algorithm
+    * @return the signed certificate
+    * @throws SignatureException if an ECDSA signature is not in the X9.62 format, or does not match the signer key
+    * @throws ConstructionException if a signature has already been attached, or the body has been modified
+    */
+   public CVCertificate attachSignature(final byte[] signature) throws SignatureException, ConstructionException {
+      return attach(toCVCSignature(signature, false));
+   }
+
+   /**
+    * Sets the signature of the certificate, which is already in the CVC format
+    * @param signature r||s for ECDSA, as produced by e.g. SHA256WITHPLAIN-ECDSA
+    * @return the signed certificate
+    * @throws SignatureException if an ECDSA signature does not match the signer key
+    * @throws ConstructionException if a signature has already been attached, or the body has been modified
+    */
+   public CVCertificate attachPlainSignature(final byte[] signature) throws SignatureException, ConstructionException {
+      return attach(toCVCSignature(signature, true));
+   }
+
+   /**
+    * Attaches a batch of signatures. All signatures are converted and checked before any is
+    * attached, so either all certificates are signed or none is.
+    * @param certificates
+    * @param signatures one per certificate, in the same order
+    * @param plain true if the ECDSA signatures are in the CVC format r||s, or false if they are in the X9.62 format
+    * @return the signed certificates
+    * @throws SignatureException if the number of signatures differs, or an ECDSA signature is not in the
+    *         X9.62 format or does not match the signer key
+    * @throws ConstructionException if a certificate is given twice or has a signature already, or a body has been modified
+    */
+   public static List<CVCertificate> attachSignatures(final List<PreparedCertificate> certificates, final List<byte[]> signatures,
+         final boolean plain) throws SignatureException, ConstructionException {
+      if( signatures==null || signatures.size()!=certificates.size() ){
+         throw new SignatureException("Got " + (signatures==null ? 0 : signatures.size())
+               + " signatures for " + certificates.size() + " certificates");
+      }
+      final Set<PreparedCertificate> seen = Collections.newSetFromMap(new IdentityHashMap<PreparedCertificate, Boolean>());
+      final List<byte[]> cvcSignatures = new ArrayList<byte[]>(certificates.size());
+      for( int i=0; i<certificates.size(); i++ ){
+         final PreparedCertificate prepared = certificates.get(i);
+         if( !seen.add(prepared) ){
+            throw new ConstructionException("Certificate " + i + " occurs more than once in the batch");
+         }
+         cvcSignatures.add(prepared.toCVCSignature(signatures.get(i), plain));
+      }
+      final List<CVCertificate> result = new ArrayList<CVCertificate>(certificates.size());
+      for( int i=0; i<certificates.size(); i++ ){
+         result.add(certificates.get(i).attach(cvcSignatures.get(i)));
+      }
+      return result;
+   }
+
+   // Converts a signature to the CVC format, and checks that it can be attached
+   private byte[] toCVCSignature(final byte[] signature, final boolean plain) throws SignatureException, ConstructionException {
+      if( certificate.getOptionalSubfield(CVCTagEnum.SIGNATURE)!=null ){
+         throw new ConstructionException("A signature has already been attached");
+      }
+      if( !Arrays.equals(tbs, certificate.getTBS()) ){
+         throw new ConstructionException("The certificate body has been modified since it was prepared");
+      }
+      if( signature==null ){
+         throw new SignatureException("No signature");
+      }
+      final byte[] cvcSignature;
+      try {
+         cvcSignature = plain ? signature : BCECUtil.convertX962SigToCVC(algorithmName, signature, orderLength);
+      }
+      catch( IOException e ){
+         throw new SignatureException(e);
+      }
+      // Order lengths are only known for ECDSA, where r and s are padded to that length
+      if( orderLength>0 && cvcSignature.length!=2*orderLength ){
+         throw new SignatureException("Signature length " + cvcSignature.length + " does not match the signer key, expected " + 2*orderLength);
+      }
+      return cvcSignature;
+   }
+
+   // Sets a signature returned by toCVCSignature()
+   private CVCertificate attach(final byte[] cvcSignature) throws ConstructionException {
+      certificate.setSignature(cvcSignature);
+      return certificate;
+   }
+
+}
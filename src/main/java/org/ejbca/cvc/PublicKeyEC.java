@@ -14,14 +14,11 @@ package org.ejbca.cvc;
 
 import java.math.BigInteger;
 import java.security.interfaces.ECPublicKey;
-import java.security.spec.ECField;
 import java.security.spec.ECFieldFp;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
 import java.security.spec.EllipticCurve;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 import org.bouncycastle.jce.ECPointUtil;
 import org.ejbca.cvc.exception.ConstructionException;
@@ -37,6 +34,13 @@ public class PublicKeyEC
  
    static final long serialVersionUID = 1L;  // TODO: Fix better value
 
+   /** Subfields to DER-encode, or null if not yet decided */
+   private transient CVCObject[] encodableSlots;
+   /** Domain parameters created from the subfields, or null if not yet created */
+   private transient ECParameterSpec params;
+   /** Domain parameters of the CVCA, for a key that has none of its own */
+   private transient ECParameterSpec inheritedParams;
+
    /** Byte value indicating the start of an uncompressed Point data array */
    public static final byte  UNCOMPRESSED_POINT_TAG = 0x04;
 
@@ -58,6 +62,19 @@ public class PublicKeyEC
    }
 
    
+   /**
+    * Creates an empty instance, used by the parser
+    */
+   PublicKeyEC() {
+      super();
+   }
+
+   @Override
+   void decodingComplete() throws ConstructionException {
+      checkSubfield(CVCTagEnum.OID);
+      checkSubfield(CVCTagEnum.PUBLIC_POINT_Y);
+   }
+
    /**
     * Creates an instance from a GenericPublicKeyField
     * @param genericKey
@@ -89,24 +106,22 @@ public class PublicKeyEC
 
       ECParameterSpec ecParameterSpec  = pubKeyEC.getParams();
       boolean addAllParams = (authRole==null || authRole.isCVCA());
+      // The parameters are encoded once per curve, and copied since getData() returns the array
+      final EncodedDomainParameters encodedParams = addAllParams ? EncodedDomainParameters.get(ecParameterSpec) : null;
       if( addAllParams ){
-         ECField ecField = ecParameterSpec.getCurve().getField();
-         if( ecField instanceof ECFieldFp ){
-            ECFieldFp fp = (ECFieldFp)ecField;
-            addSubfield(new ByteField(CVCTagEnum.MODULUS,         trimByteArray(fp.getP().toByteArray())));
+         if( encodedParams.modulus!=null ){
+            addSubfield(new ByteField(CVCTagEnum.MODULUS,         encodedParams.modulus.clone()));
          }
-         // TODO: Can ecField be of type ECFieldF2m? Then what is the modulus?
-
-         addSubfield(new ByteField(CVCTagEnum.COEFFICIENT_A,      trimByteArray(ecParameterSpec.getCurve().getA().toByteArray())));
-         addSubfield(new ByteField(CVCTagEnum.COEFFICIENT_B,      trimByteArray(ecParameterSpec.getCurve().getB().toByteArray())));
-         addSubfield(new ByteField(CVCTagEnum.BASE_POINT_G,       encodePoint(ecParameterSpec.getGenerator(), ecParameterSpec.getCurve())));
-         addSubfield(new ByteField(CVCTagEnum.BASE_POINT_R_ORDER, trimByteArray(ecParameterSpec.getOrder().toByteArray())));
+         addSubfield(new ByteField(CVCTagEnum.COEFFICIENT_A,      encodedParams.coefficientA.clone()));
+         addSubfield(new ByteField(CVCTagEnum.COEFFICIENT_B,      encodedParams.coefficientB.clone()));
+         addSubfield(new ByteField(CVCTagEnum.BASE_POINT_G,       encodedParams.basePointG.clone()));
+         addSubfield(new ByteField(CVCTagEnum.BASE_POINT_R_ORDER, encodedParams.order.clone()));
       }
 
       addSubfield(new ByteField(CVCTagEnum.PUBLIC_POINT_Y,     encodePoint(pubKeyEC.getW(), ecParameterSpec.getCurve())));
 
       if( addAllParams ){
-         addSubfield(new IntegerField(CVCTagEnum.COFACTOR_F,      ecParameterSpec.getCofactor()));
+         addSubfield(new IntegerField(CVCTagEnum.COFACTOR_F,      encodedParams.cofactor));
       }
    }
    
@@ -126,67 +141,102 @@ public class PublicKeyEC
     * According to EAC Spec 1.11: 
     * CVCRequest must contain all fields, CVCA-certificate may have all, others must 
     * only have the required fields.
+    * <p>
+    * The decision is made when the key is first encoded, and kept until the key, 
+    * or the certificate body holding it, is modified.
     */
    @Override
-   protected List<CVCObject> getEncodableFields() {
-      try {
-         ArrayList<CVCObject> list = new ArrayList<CVCObject>();
-         // This field is always present
-         list.add(getSubfield(CVCTagEnum.OID));
-   
-         boolean addAllParams = false;
-         
-         // First of all we must have an ECParameterSpec to read from
-         ECParameterSpec ecParameterSpec = getParams();
-         if( ecParameterSpec!=null ){
-            AbstractSequence parent = getParent();
-            if( parent!=null && (parent.getTag()==CVCTagEnum.CERTIFICATE_BODY) ){
-               try {
-                  CVCObject cvcObj = ((CVCertificateBody)parent).getOptionalSubfield(CVCTagEnum.HOLDER_AUTH_TEMPLATE);
-                  if( cvcObj==null ){
-                     // No HOLDER_AUTH_TEMPLATE - assumption: We're building a CVCRequest
-                     addAllParams = true;
-                  }
-                  else {
-                     // HOLDER_AUTH_TEMPLATE exists, so it should be a CVCertificate. Check if role is CVCA
-                     AuthorizationField authField = ((CVCAuthorizationTemplate)cvcObj).getAuthorizationField();
-                     addAllParams = (authField!=null && authField.getAuthRole().isCVCA());
-                  }
-               }
-               catch( NoSuchFieldException e ){
-                  // Nothing to do...
+   CVCObject[] getEncodableSlots() {
+      CVCObject[] slots = encodableSlots;
+      if( slots==null ){
+         try {
+            if( isAllParamsEncoded() ){
+               for( CVCTagEnum tag : allowedFields ){
+                  getSubfield(tag);
                }
+               slots = getSubfieldSlots();
             }
-            else if( parent==null ){
-               // This could be useful during development - enables DER-encoding of the public key alone
-               addAllParams = true;
+            else {
+               slots = new CVCObject[] { getSubfield(CVCTagEnum.OID), getSubfield(CVCTagEnum.PUBLIC_POINT_Y) };
             }
          }
-         if( addAllParams ){
-            ECField ecField = ecParameterSpec.getCurve().getField();
-            if( ecField instanceof ECFieldFp ){
-               list.add(getSubfield(CVCTagEnum.MODULUS));
+         catch( NoSuchFieldException e ){
+            // This instance has not been created correctly
+            throw new IllegalStateException(e);
+         }
+         encodableSlots = slots;
+      }
+      return slots;
+   }
+
+   /**
+    * Drops the fields chosen for encoding, since the decision depends on the enclosing sequence
+    */
+   void resetEncodableSlots() {
+      encodableSlots = null;
+   }
+
+   @Override
+   public void setParent(final AbstractSequence parent) {
+      super.setParent(parent);
+      resetEncodableSlots();
+   }
+
+   @Override
+   void invalidateEncoding() {
+      resetEncodableSlots();
+      params = null;
+      super.invalidateEncoding();
+   }
+
+
+   /**
+    * Decides if the domain parameters should be included when DER-encoding, 
+    * which depends on the role in the enclosing certificate body. No curve 
+    * objects are created.
+    * @return
+    */
+   private boolean isAllParamsEncoded() {
+      boolean addAllParams = false;
+      if( getOptionalSubfield(CVCTagEnum.MODULUS)!=null ){
+         AbstractSequence parent = getParent();
+         if( parent!=null && (parent.getTag()==CVCTagEnum.CERTIFICATE_BODY) ){
+            try {
+               CVCObject cvcObj = ((CVCertificateBody)parent).getOptionalSubfield(CVCTagEnum.HOLDER_AUTH_TEMPLATE);
+               if( cvcObj==null ){
+                  // No HOLDER_AUTH_TEMPLATE - assumption: We're building a CVCRequest
+                  addAllParams = true;
+               }
+               else {
+                  // HOLDER_AUTH_TEMPLATE exists, so it should be a CVCertificate. Check if role is CVCA
+                  AuthorizationField authField = ((CVCAuthorizationTemplate)cvcObj).getAuthorizationField();
+                  addAllParams = (authField!=null && authField.getAuthRole().isCVCA());
+               }
+            }
+            catch( NoSuchFieldException e ){
+               // Nothing to do...
             }
-            // TODO: Can ecField be of type ECFieldF2m? Then what is the modulus?
-   
-            list.add(getSubfield(CVCTagEnum.COEFFICIENT_A));
-            list.add(getSubfield(CVCTagEnum.COEFFICIENT_B));
-            list.add(getSubfield(CVCTagEnum.BASE_POINT_G));
-            list.add(getSubfield(CVCTagEnum.BASE_POINT_R_ORDER));
          }
-         
-         // This field is always present
-         list.add(getSubfield(CVCTagEnum.PUBLIC_POINT_Y));
-         
-         if( addAllParams ){
-            list.add(getSubfield(CVCTagEnum.COFACTOR_F));
+         else if( parent==null ){
+            // This could be useful during development - enables DER-encoding of the public key alone
+            addAllParams = true;
          }
-         return list;
       }
-      catch( NoSuchFieldException e ){
-         // This instance has not been created correctly
-         throw new IllegalStateException(e);
+      return addAllParams;
+   }
+
+   /**
+    * The original encoding can only be reused if it agrees with the current 
+    * body regarding the domain parameters, since the same key may be moved from
+    * a request into a certificate for a role that must not carry them.
+    */
+   @Override
+   boolean hasEncoded() {
+      if( !super.hasEncoded() ){
+         return false;
       }
+      // The domain parameters are encoded if and only if all subfields are
+      return getOptionalSubfield(CVCTagEnum.MODULUS)==null || getEncodableSlots()==getSubfieldSlots();
    }
 
 
@@ -200,7 +250,36 @@ public class PublicKeyEC
    }
 
 
+   /**
+    * Returns the domain parameters. The spec is created once and kept until the key
+    * is modified. The parameters of well-known curves are returned as a shared 
+    * ECNamedCurveSpec. A key without parameters of its own returns those set with
+    * setInheritedParams(), or null.
+    */
    public ECParameterSpec getParams() {
+      ECParameterSpec ecParameterSpec = params;
+      if( ecParameterSpec==null ){
+         if( getOptionalSubfield(CVCTagEnum.MODULUS)==null ){
+            return inheritedParams;
+         }
+         ecParameterSpec = createParams();
+         params = ecParameterSpec;
+      }
+      return ecParameterSpec;
+   }
+
+   /**
+    * Sets the domain parameters to use for a key that has none of its own, that is
+    * the parameters of the CVCA certificate that the key's chain starts from. They 
+    * are not encoded.
+    * @param inheritedParams
+    * @see DomainParameterResolver
+    */
+   void setInheritedParams(final ECParameterSpec inheritedParams) {
+      this.inheritedParams = inheritedParams;
+   }
+
+   private ECParameterSpec createParams() {
       // Fetch the subfields and construct the ECParameterSpec
       ECParameterSpec ecParameterSpec = null;
       ByteField modulus       = (ByteField)getOptionalSubfield(CVCTagEnum.MODULUS);
@@ -211,16 +290,19 @@ public class PublicKeyEC
       IntegerField cofactor   = (IntegerField)getOptionalSubfield(CVCTagEnum.COFACTOR_F);
       
       if( modulus!=null ){
+         ecParameterSpec = NamedCurves.find(modulus, coefficient_a, coefficient_b, base_point_g, point_r_order, cofactor);
+      }
+      if( ecParameterSpec==null && modulus!=null ){
          EllipticCurve curve = new EllipticCurve(
                // ECField2m ?
-               new ECFieldFp(new BigInteger(1, modulus.getData())), // q
-               new BigInteger(1, coefficient_a.getData()),  // a
-               new BigInteger(1, coefficient_b.getData())); // b
+               new ECFieldFp(toPositiveBigInteger(modulus)), // q
+               toPositiveBigInteger(coefficient_a),  // a
+               toPositiveBigInteger(coefficient_b)); // b
    
          ecParameterSpec = new ECParameterSpec(
                curve,
                ECPointUtil.decodePoint(curve, base_point_g.getData()), // G
-               new BigInteger(1, point_r_order.getData()), // n
+               toPositiveBigInteger(point_r_order), // n
                cofactor.getValue()); // h
 
       }
@@ -33,6 +33,22 @@ public class PublicKeyRSA extends CVCPublicKey implements RSAPublicKey {
         return allowedFields;
     }
 
+    /**
+     * Constructs an empty instance, used by the parser
+     */
+    PublicKeyRSA() {
+        super();
+    }
+
+    @Override
+    void decodingComplete() throws ConstructionException {
+        checkSubfield(CVCTagEnum.OID);
+        checkSubfield(CVCTagEnum.MODULUS);
+        checkSubfield(CVCTagEnum.EXPONENT);
+        // We want to see this when printing as text
+        ((ByteField) getOptionalSubfield(CVCTagEnum.MODULUS)).setShowBitLength(true);
+    }
+
     /**
      * Constructs an instance from a GenericPublicKeyField
      * 
@@ -74,7 +90,7 @@ public class PublicKeyRSA extends CVCPublicKey implements RSAPublicKey {
     public BigInteger getPublicExponent() {
         try {
             ByteField exp = (ByteField) getSubfield(CVCTagEnum.EXPONENT);
-            return new BigInteger(1, exp.getData());
+            return toPositiveBigInteger(exp);
         } catch (NoSuchFieldException e) {
             // This object has not been created correctly?
             throw new IllegalStateException(e);
@@ -84,7 +100,7 @@ public class PublicKeyRSA extends CVCPublicKey implements RSAPublicKey {
     public BigInteger getModulus() {
         try {
             ByteField exp = (ByteField) getSubfield(CVCTagEnum.MODULUS);
-            return new BigInteger(1, exp.getData());
+            return toPositiveBigInteger(exp);
         } catch (NoSuchFieldException e) {
             // This object has not been created correctly?
             throw new IllegalStateException(e);
@@ -74,9 +74,21 @@ public abstract class ReferenceField extends AbstractDataField {
      * @param data
      */
     protected ReferenceField(CVCTagEnum tag, byte[] data) {
+        this(tag, data, 0, data.length);
+    }
+
+    /**
+     * Constructs a new instance by parsing a region of DER-encoded data
+     * 
+     * @param tag
+     * @param data
+     * @param offset
+     * @param length
+     */
+    protected ReferenceField(CVCTagEnum tag, byte[] data, int offset, int length) {
         super(tag);
 
-        String dataStr = new String(data);
+        String dataStr = new String(data, offset, length);
         this.country = dataStr.substring(0, 2); // Has always length = 2
         this.mnemonic = dataStr.substring(2, dataStr.length() - 5);
         this.sequence = dataStr.substring(dataStr.length() - 5); // Has always
@@ -0,0 +1,162 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Objects;
+
+/**
+ * Keeps Signature and MessageDigest instances per thread, by algorithm and provider name,
+ * so that verifying and hashing do not look up and instantiate an engine every time.
+ * A null provider name stands for the most preferred provider of the algorithm. Signatures
+ * without a provider name are not cached, since their provider is chosen by the key.
+ * Signatures for signing are never taken from the cache, since an engine keeps the key it
+ * was last initialized with.
+ * <p>
+ * An engine is returned again by the same thread only, which must initialize it before
+ * use and finish with it before getting another engine of the same kind, algorithm and
+ * provider. A cached engine is replaced if its provider has been removed or replaced.
+ * Each thread keeps at most eight engines; the oldest one is dropped to make room.
+ * <p>
+ * The cached engines, and the provider classes they belong to, stay reachable from the
+ * thread until clear() is called on it. Containers that reuse threads across applications
+ * can disable the cache with setEnabled(false).
+ *
+ * @version $Id$
+ */
+public final class SignatureCache {
+
+   private static final int SIZE = 8;
+
+   private static final ThreadLocal<SignatureCache> CACHES = ThreadLocal.withInitial(SignatureCache::new);
+
+   private static volatile boolean enabled = true;
+
+   // Signature or MessageDigest instances, with the names they were requested with
+   private final Object[] engines = new Object[SIZE];
+   private final String[] algorithms = new String[SIZE];
+   private final String[] providers = new String[SIZE];
+   private int next;
+
+   private SignatureCache() {
+   }
+
+   /**
+    * Drops the engines cached for the calling thread
+    */
+   public static void clear() {
+      CACHES.remove();
+   }
+
+   /**
+    * Enables or disables the cache for all threads. When disabled, a new engine is
+    * created every time, and the engines cached for the calling thread are dropped.
+    * @param enable
+    */
+   public static void setEnabled(final boolean enable) {
+      enabled = enable;
+      if( !enable ){
+         clear();
+      }
+   }
+
+   /**
+    * Returns a Signature for verifying in this thread, as Signature.getInstance(algorithm, provider)
+    * or Signature.getInstance(algorithm) if 'provider' is null
+    * @param algorithm
+    * @param provider
+    * @return
+    */
+   static Signature getSignature(final String algorithm, final String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+      if( provider==null ){
+         return Signature.getInstance(algorithm);
+      }
+      if( !enabled ){
+         return Signature.getInstance(algorithm, provider);
+      }
+      final SignatureCache cache = CACHES.get();
+      final int index = cache.find(Signature.class, algorithm, provider);
+      if( index>=0 ){
+         return (Signature)cache.engines[index];
+      }
+      final Signature signature = Signature.getInstance(algorithm, provider);
+      cache.add(signature, algorithm, provider);
+      return signature;
+   }
+
+   /**
+    * Returns a MessageDigest for this thread, as MessageDigest.getInstance(algorithm, provider)
+    * or MessageDigest.getInstance(algorithm) if 'provider' is null
+    * @param algorithm
+    * @param provider
+    * @return
+    */
+   static MessageDigest getMessageDigest(final String algorithm, final String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+      if( !enabled ){
+         return provider!=null ? MessageDigest.getInstance(algorithm, provider) : MessageDigest.getInstance(algorithm);
+      }
+      final SignatureCache cache = CACHES.get();
+      final int index = cache.find(MessageDigest.class, algorithm, provider);
+      if( index>=0 ){
+         final MessageDigest digest = (MessageDigest)cache.engines[index];
+         digest.reset();
+         return digest;
+      }
+      final MessageDigest digest = provider!=null ? MessageDigest.getInstance(algorithm, provider) : MessageDigest.getInstance(algorithm);
+      cache.add(digest, algorithm, provider);
+      return digest;
+   }
+
+   // Returns the index of a usable engine, or -1
+   private int find(final Class<?> type, final String algorithm, final String provider) {
+      for( int i=0; i<SIZE; i++ ){
+         final Object engine = engines[i];
+         if( type.isInstance(engine) && algorithm.equals(algorithms[i]) && Objects.equals(provider, providers[i]) ){
+            final Provider engineProvider = getProvider(engine);
+            if( engineProvider==Security.getProvider(engineProvider.getName()) ){
+               return i;
+            }
+            // The provider has been removed or replaced since the engine was created
+            engines[i] = null;
+            return -1;
+         }
+      }
+      return -1;
+   }
+
+   private static Provider getProvider(final Object engine) {
+      return engine instanceof Signature ? ((Signature)engine).getProvider() : ((MessageDigest)engine).getProvider();
+   }
+
+   private void add(final Object engine, final String algorithm, final String provider) {
+      int index = -1;
+      for( int i=0; i<SIZE && index<0; i++ ){
+         if( engines[i]==null ){
+            index = i;
+         }
+      }
+      if( index<0 ){
+         index = next;
+         next = (next + 1) % SIZE;
+      }
+      engines[index] = engine;
+      algorithms[index] = algorithm;
+      providers[index] = provider;
+   }
+
+}
@@ -0,0 +1,177 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Cursor for walking DER-encoded TLVs by index over a byte array.
+ * Nothing is copied; callers get positions and lengths into the
+ * underlying array and decide themselves what to do with the value bytes.
+ * <p>
+ * Instances are not thread safe but can be reused through {@link #reset(byte[], int, int)}.
+ *
+ * @version $Id$
+ */
+final class TLVReader {
+
+   private byte[] buffer;
+   private int position;
+   private int end;
+
+   /**
+    * Creates an instance that must be reset before use
+    */
+   TLVReader() {
+   }
+
+   /**
+    * Creates an instance positioned at 'offset'
+    * @param buffer
+    * @param offset
+    * @param length
+    */
+   TLVReader(final byte[] buffer, final int offset, final int length) {
+      reset(buffer, offset, length);
+   }
+
+   /**
+    * Points this reader at a new region
+    * @param buffer
+    * @param offset
+    * @param length
+    * @throws IllegalArgumentException if the region is outside the array
+    */
+   void reset(final byte[] buffer, final int offset, final int length) {
+      if( buffer==null ){
+         throw new IllegalArgumentException("buffer is null");
+      }
+      if( offset<0 || length<0 || offset>buffer.length-length ){
+         throw new IllegalArgumentException("Region " + offset + "+" + length + " is outside array of length " + buffer.length);
+      }
+      this.buffer = buffer;
+      this.position = offset;
+      this.end = offset + length;
+   }
+
+   /**
+    * Returns the underlying array
+    * @return
+    */
+   byte[] getBuffer() {
+      return buffer;
+   }
+
+   /**
+    * Returns the current position in the underlying array
+    * @return
+    */
+   int getPosition() {
+      return position;
+   }
+
+   /**
+    * Moves to an absolute position, which must not be beyond the end of the region
+    * @param position
+    */
+   void setPosition(final int position) {
+      if( position<0 || position>end ){
+         throw new IllegalArgumentException("Position " + position + " is outside region ending at " + end);
+      }
+      this.position = position;
+   }
+
+   /**
+    * Returns the (exclusive) end position of the region
+    * @return
+    */
+   int getEnd() {
+      return end;
+   }
+
+   /**
+    * Returns true if there are more bytes to read before the end of the region
+    * @return
+    */
+   boolean hasRemaining() {
+      return position < end;
+   }
+
+   /**
+    * Reads a tag value. Encoded according to ITU-T X.690, where a low five
+    * bits of 0x1F in the first byte means that one more byte follows.
+    * @param limit position that the tag must not run past
+    * @return
+    * @throws ParseException if the tag is truncated
+    */
+   int readTag(final int limit) throws ParseException {
+      if( position>=limit ){
+         throw new ParseException("Unexpected end of data when reading tag at position " + position);
+      }
+      final int b1 = buffer[position++] & 0xFF;
+      if( (b1 & 0x1F) != 0x1F ){
+         return b1;
+      }
+      // There is another byte to read
+      if( position>=limit ){
+         throw new ParseException("Unexpected end of data when reading tag at position " + position);
+      }
+      return (b1 << 8) | (buffer[position++] & 0xFF);
+   }
+
+   /**
+    * Reads and decodes a DER-encoded length value and checks that this many
+    * value bytes are available before 'limit'.
+    * @param limit position that the value must not run past
+    * @return
+    * @throws ParseException if the length is truncated, unsupported or too large
+    */
+   int readLength(final int limit) throws ParseException {
+      if( position>=limit ){
+         throw new ParseException("Unexpected end of data when reading length at position " + position);
+      }
+      final int b1 = buffer[position++] & 0xFF;
+      int length;
+      if( b1>0x7F ){
+         // If the MSB is set then the number of length bytes is stored here
+         final int lenBytes = b1 & 0x7F;
+         if( lenBytes==0 || lenBytes>3 ){
+            throw new ParseException("Unsupported number of length bytes: " + lenBytes);
+         }
+         if( limit-position < lenBytes ){
+            throw new ParseException("Unexpected end of data when reading length at position " + position);
+         }
+         length = 0;
+         for( int i=0; i<lenBytes; i++ ){
+            length = (length << 8) | (buffer[position++] & 0xFF);
+         }
+      }
+      else {
+         // No, the MSB wasn't set so the length can be read directly from the current byte
+         length = b1;
+      }
+      if( length > limit-position ){
+         throw new ParseException("Length " + length + " at position " + position + " exceeds the " + (limit-position) + " remaining bytes");
+      }
+      return length;
+   }
+
+   /**
+    * Skips 'length' bytes
+    * @param length
+    */
+   void skip(final int length) {
+      setPosition(position + length);
+   }
+
+}
@@ -0,0 +1,156 @@
+/*************************************************************************
+ *                                                                       *
+ *  CERT-CVC: EAC 1.11 Card Verifiable Certificate Library               *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.ejbca.cvc;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.ejbca.cvc.exception.ParseException;
+
+/**
+ * Maps tag values to CVCTagEnum in constant time, without allocating.
+ * <p>
+ * Some tags share a value (0x53 is ROLE_AND_ACCESS_RIGHTS or ARBITRARY_DATA, 0x82 is
+ * EXPONENT or COEFFICIENT_A). There is one table for each kind of sequence, where
+ * the tags allowed in that sequence take precedence, so the enclosing sequence decides
+ * which tag a value means. Public keys have one table for RSA and one for EC keys.
+ * <p>
+ * One-byte tags and two-byte tags starting with 0x5F or 0x7F, which are the ones
+ * used by CVC, are stored in one dense array.
+ *
+ * @version $Id$
+ */
+final class TagTable {
+
+   private static final int SIZE = 0x300;
+
+   /** All tags. Where two tags share a value, the first declared in CVCTagEnum is used. */
+   static final TagTable ALL = new TagTable(null, CVCTagEnum.values());
+
+   private static final Map<CVCTagEnum, TagTable> SEQUENCES = new EnumMap<CVCTagEnum, TagTable>(CVCTagEnum.class);
+   static {
+      for( CVCTagEnum tag : CVCTagEnum.values() ){
+         if( tag.isSequence() ){
+            SEQUENCES.put(tag, new TagTable(ALL, SequenceFactory.createSequence(tag).getAllowedFields()));
+         }
+      }
+   }
+
+   /** Subfields of an RSA public key */
+   static final TagTable RSA_PUBLIC_KEY = new TagTable(SEQUENCES.get(CVCTagEnum.PUBLIC_KEY), new CVCTagEnum[] { CVCTagEnum.EXPONENT });
+   /** Subfields of an EC public key */
+   static final TagTable EC_PUBLIC_KEY  = new TagTable(SEQUENCES.get(CVCTagEnum.PUBLIC_KEY), new CVCTagEnum[] { CVCTagEnum.COEFFICIENT_A });
+
+   /** Encoded prefixes of all RSA and EC key OIDs, that is id_TA_RSA and id_TA_ECDSA without tag and length */
+   private static final byte[] RSA_OID_PREFIX   = new OIDField(CVCObjectIdentifiers.id_TA_RSA).getEncoded();
+   private static final byte[] ECDSA_OID_PREFIX = new OIDField(CVCObjectIdentifiers.id_TA_ECDSA).getEncoded();
+
+   private final CVCTagEnum[] tags = new CVCTagEnum[SIZE];
+
+   /**
+    * Creates a table where 'preferred' take precedence over the entries in 'base'
+    * @param base
+    * @param preferred
+    */
+   private TagTable(final TagTable base, final CVCTagEnum[] preferred) {
+      if( base!=null ){
+         System.arraycopy(base.tags, 0, tags, 0, SIZE);
+      }
+      for( int i=preferred.length-1; i>=0; i-- ){
+         // Walk backwards so that the first of two tags with the same value wins
+         tags[index(preferred[i].getValue())] = preferred[i];
+      }
+   }
+
+   // Returns the position of a tag value in the array, or -1 if it can not be stored
+   private static int index(final int value) {
+      if( value<0x100 ){
+         return value;
+      }
+      switch( value >> 8 ){
+      case 0x5F: return 0x100 + (value & 0xFF);
+      case 0x7F: return 0x200 + (value & 0xFF);
+      default:   return -1;
+      }
+   }
+
+   /**
+    * Returns the table for the subfields of a sequence. Public keys have their own
+    * tables, see forPublicKey().
+    * @param sequenceTag
+    * @return
+    */
+   static TagTable forSequence(final CVCTagEnum sequenceTag) {
+      return SEQUENCES.get(sequenceTag);
+   }
+
+   /**
+    * Returns the table for the subfields of a public key, depending on its OID. The OID
+    * is looked up among the subfields; the reader's position is not changed.
+    * @param reader positioned at the first subfield
+    * @param sequenceEnd end of the public key
+    * @return EC_PUBLIC_KEY or RSA_PUBLIC_KEY, or null if there is no OID or it is not a known key type
+    */
+   static TagTable forPublicKey(final TLVReader reader, final int sequenceEnd) throws ParseException {
+      final int start = reader.getPosition();
+      try {
+         while( reader.getPosition() < sequenceEnd ){
+            final int tagValue = reader.readTag(sequenceEnd);
+            final int length = reader.readLength(sequenceEnd);
+            if( tagValue==CVCTagEnum.OID.getValue() ){
+               if( startsWith(reader.getBuffer(), reader.getPosition(), length, ECDSA_OID_PREFIX) ){
+                  return EC_PUBLIC_KEY;
+               }
+               else if( startsWith(reader.getBuffer(), reader.getPosition(), length, RSA_OID_PREFIX) ){
+                  return RSA_PUBLIC_KEY;
+               }
+               return null;
+            }
+            reader.skip(length);
+         }
+         return null;
+      }
+      finally {
+         reader.setPosition(start);
+      }
+   }
+
+   // Checks that an OID value is longer than, and starts with, 'prefix'
+   private static boolean startsWith(final byte[] buffer, final int offset, final int length, final byte[] prefix) {
+      if( length<=prefix.length ){
+         return false;
+      }
+      for( int i=0; i<prefix.length; i++ ){
+         if( buffer[offset + i]!=prefix[i] ){
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Maps a tag value to a CVCTagEnum
+    * @param value
+    * @return
+    * @throws ParseException if the value is not a known tag
+    */
+   CVCTagEnum find(final int value) throws ParseException {
+      final int index = index(value);
+      final CVCTagEnum tag = index>=0 ? tags[index] : null;
+      if( tag==null ){
+         throw new ParseException("Unknown CVC tag value " + Integer.toHexString(value));
+      }
+      return tag;
+   }
+
+}
@@ -1,106 +1,223 @@
 package org.ejbca.cvc.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.security.Key;
 import java.security.SignatureException;
-import java.util.Locale;
-
-import org.bouncycastle.asn1.ASN1EncodableVector;
-import org.bouncycastle.asn1.ASN1Encoding;
-import org.bouncycastle.asn1.ASN1InputStream;
-import org.bouncycastle.asn1.ASN1Integer;
-import org.bouncycastle.asn1.ASN1OutputStream;
-import org.bouncycastle.asn1.ASN1Sequence;
-import org.bouncycastle.asn1.DERSequence;
-
-/** This is directly copied from org.bouncycastle.jce.provider.asymmetric.ec.Signature
- *  BC version 1.41b04 was the base of the copy-paste operation.
- *  
+import java.security.interfaces.ECKey;
+import java.security.spec.ECParameterSpec;
+
+/** Converts ECDSA signatures between the X9.62 format, a DER encoded
+ *  SEQUENCE { INTEGER r, INTEGER s }, and the plain format r||s used in CVCs.
+ *  The conversion works directly on the byte arrays.
+ *  Originally based on org.bouncycastle.jce.provider.asymmetric.ec.Signature
+ *  from BC version 1.41b04.
+ *
  * @version $Id$
  */
 public final class BCECUtil
 {
+    private static final int SEQUENCE = 0x30;
+    private static final int INTEGER = 0x02;
+
 	/** private constructor this is a static utility class */
 	private BCECUtil() {}
-	
+
+    /**
+     * Converts an X9.62 signature to a CVC signature, where r and s have the length of the longer one
+     * @param algorithmName the signature is returned unchanged unless this is an ECDSA algorithm
+     * @param xsig
+     * @return
+     * @throws IOException if the signature is not a DER encoded sequence of two positive integers
+     */
     public static byte[] convertX962SigToCVC(final String algorithmName, final byte[] xsig) throws IOException {
+        return convertX962SigToCVC(algorithmName, xsig, 0);
+    }
+
+    /**
+     * Converts an X9.62 signature to a CVC signature, where r and s are padded to the length of the curve order
+     * @param algorithmName the signature is returned unchanged unless this is an ECDSA algorithm
+     * @param xsig
+     * @param orderLength length of the curve order in bytes, see getOrderLength(Key).
+     *        Shorter values, e.g. 0, give the length of the longer of r and s.
+     * @return
+     * @throws IOException if the signature is not a DER encoded sequence of two positive integers
+     */
+    public static byte[] convertX962SigToCVC(final String algorithmName, final byte[] xsig, final int orderLength) throws IOException {
         // Only do this if it's an ECDSA algorithm
-        if (!algorithmName.toUpperCase(Locale.getDefault()).contains("EC")) {
+        if (!isEC(algorithmName)) {
             return xsig;
         }
         // Read r and s from asn.1 encoded x9.62 signature
-        final ASN1InputStream aIn = new ASN1InputStream(xsig);
-        final ASN1Sequence seq;
-        try {
-            seq = (ASN1Sequence) aIn.readObject();
-        } finally {
-            aIn.close();
+        if (xsig.length < 2 || (xsig[0] & 0xFF) != SEQUENCE) {
+            throw new IOException("X9.62 signature is not a sequence");
         }
-        final BigInteger r = ((ASN1Integer) seq.getObjectAt(0)).getValue();
-        final BigInteger s = ((ASN1Integer) seq.getObjectAt(1)).getValue();
-
-        // Write r and s to not asn.1 encoded cvc signature
-        final byte[] first = makeUnsigned(r);
-        final byte[] second = makeUnsigned(s);
-        byte[] res;
-
-        if (first.length > second.length) {
-            res = new byte[first.length * 2];
-        } else {
-            res = new byte[second.length * 2];
+        int pos = 1;
+        final int seqLength = readLength(xsig, pos);
+        pos += lengthOfLength(seqLength);
+        if (pos + seqLength != xsig.length) {
+            throw new IOException("Wrong length of X9.62 signature");
+        }
+        final int rLength = checkInteger(xsig, pos);
+        pos += 1 + lengthOfLength(rLength);
+        final int rOffset = pos;
+        pos += rLength;
+        final int sLength = checkInteger(xsig, pos);
+        pos += 1 + lengthOfLength(sLength);
+        final int sOffset = pos;
+        if (pos + sLength != xsig.length) {
+            throw new IOException("Wrong length of X9.62 signature");
         }
 
-        System.arraycopy(first, 0, res, res.length / 2 - first.length, first.length);
-        System.arraycopy(second, 0, res, res.length - second.length, second.length);
-
+        // Write r and s to not asn.1 encoded cvc signature, without sign bytes
+        final int rStart = skipZeroes(xsig, rOffset, rOffset + rLength);
+        final int sStart = skipZeroes(xsig, sOffset, sOffset + sLength);
+        final int rBytes = rOffset + rLength - rStart;
+        final int sBytes = sOffset + sLength - sStart;
+        final int half = Math.max(orderLength, Math.max(rBytes, sBytes));
+        final byte[] res = new byte[half * 2];
+        System.arraycopy(xsig, rStart, res, half - rBytes, rBytes);
+        System.arraycopy(xsig, sStart, res, res.length - sBytes, sBytes);
         return res;
-
     }
 
+	   /**
+	    * Converts a CVC signature to an X9.62 signature
+	    * @param algorithmName the signature is returned unchanged unless this is an ECDSA algorithm
+	    * @param xsig
+	    * @return
+	    */
 	   public static byte[] convertCVCSigToX962(final String algorithmName, final byte[] xsig) throws SignatureException {
 		   // Only do this if it's an ECDSA algorithm
-		   if (!algorithmName.toUpperCase(Locale.getDefault()).contains("EC")) {
+		   if (!isEC(algorithmName)) {
 			   return xsig;
 		   }
 		   // Read r and s from non asn.1 encoded CVC signature
-           final byte[] first = new byte[xsig.length / 2];
-           final byte[] second = new byte[xsig.length / 2];
+           final int half = xsig.length / 2;
+           final int rStart = skipZeroes(xsig, 0, half);
+           final int sStart = skipZeroes(xsig, half, half * 2);
+           final int rLength = integerLength(xsig, rStart, half);
+           final int sLength = integerLength(xsig, sStart, half * 2);
+           final int seqLength = 1 + lengthOfLength(rLength) + rLength + 1 + lengthOfLength(sLength) + sLength;
 
-           System.arraycopy(xsig, 0, first, 0, first.length);
-           System.arraycopy(xsig, first.length, second, 0, second.length);
+	       // Write r and s to asn.1 encoded X9.62 signature
+           final byte[] res = new byte[1 + lengthOfLength(seqLength) + seqLength];
+           res[0] = (byte) SEQUENCE;
+           int pos = writeLength(res, 1, seqLength);
+           pos = writeInteger(res, pos, xsig, rStart, half, rLength);
+           writeInteger(res, pos, xsig, sStart, half * 2, sLength);
+           return res;
+	   }
 
-           final BigInteger r = new BigInteger(1, first);
-           final BigInteger s = new BigInteger(1, second);
+	   /**
+	    * Returns the length in bytes of the order of an EC key's curve
+	    * @param key
+	    * @return the length, or 0 if the key is not an EC key with known domain parameters
+	    */
+	   public static int getOrderLength(final Key key) {
+	       if (key instanceof ECKey) {
+	           final ECParameterSpec params = ((ECKey) key).getParams();
+	           if (params != null) {
+	               return (params.getOrder().bitLength() + 7) / 8;
+	           }
+	       }
+	       return 0;
+	   }
 
-	       // Write r and s to asn.1 encoded X9.62 signature
-           final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-           final ASN1OutputStream dOut = ASN1OutputStream.create(bOut, ASN1Encoding.DER);
-           final ASN1EncodableVector v = new ASN1EncodableVector();
+	   // Same as algorithmName.toUpperCase().contains("EC"), without creating a string
+	   private static boolean isEC(final String algorithmName) {
+	       for (int i = algorithmName.length() - 2; i >= 0; i--) {
+	           if (algorithmName.regionMatches(true, i, "EC", 0, 2)) {
+	               return true;
+	           }
+	       }
+	       return false;
+	   }
+
+	   // Checks the header of a positive DER integer at 'pos', and returns the length of its value
+	   private static int checkInteger(final byte[] data, final int pos) throws IOException {
+	       if (pos + 2 > data.length || (data[pos] & 0xFF) != INTEGER) {
+	           throw new IOException("X9.62 signature does not contain two integers");
+	       }
+	       final int length = readLength(data, pos + 1);
+	       final int offset = pos + 1 + lengthOfLength(length);
+	       if (length == 0 || offset + length > data.length) {
+	           throw new IOException("Wrong length of integer in X9.62 signature");
+	       }
+	       if (data[offset] < 0) {
+	           throw new IOException("Negative integer in X9.62 signature");
+	       }
+	       return length;
+	   }
 
-           v.add(new ASN1Integer(r));
-           v.add(new ASN1Integer(s));
+	   private static int readLength(final byte[] data, final int pos) throws IOException {
+	       final int first = data[pos] & 0xFF;
+	       if (first < 0x80) {
+	           return first;
+	       }
+	       final int count = first & 0x7F;
+	       if (count == 0 || count > 3 || pos + count >= data.length) {
+	           throw new IOException("Unsupported length in X9.62 signature");
+	       }
+	       int length = 0;
+	       for (int i = 1; i <= count; i++) {
+	           length = (length << 8) | (data[pos + i] & 0xFF);
+	       }
+	       if (lengthOfLength(length) != count + 1) {
+	           throw new IOException("Length in X9.62 signature is not DER encoded");
+	       }
+	       return length;
+	   }
 
-           try {
-               dOut.writeObject(new DERSequence(v));        	   
-           } catch (IOException e) {
-        	   throw new SignatureException(e);
-           }
+	   // Number of bytes in the DER encoding of a length
+	   private static int lengthOfLength(final int length) {
+	       if (length < 0x80) {
+	           return 1;
+	       }
+	       int count = 1;
+	       for (int l = length; l != 0; l >>>= 8) {
+	           count++;
+	       }
+	       return count;
+	   }
+
+	   private static int writeLength(final byte[] out, int pos, final int length) {
+	       final int count = lengthOfLength(length) - 1;
+	       if (count == 0) {
+	           out[pos++] = (byte) length;
+	           return pos;
+	       }
+	       out[pos++] = (byte) (0x80 | count);
+	       for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+	           out[pos++] = (byte) (length >>> shift);
+	       }
+	       return pos;
+	   }
 
-           return bOut.toByteArray();
+	   // Returns the index of the first non-zero byte before 'end', or 'end'
+	   private static int skipZeroes(final byte[] data, int start, final int end) {
+	       while (start < end && data[start] == 0) {
+	           start++;
+	       }
+	       return start;
 	   }
 
-	   private static byte[] makeUnsigned(final BigInteger val)
-	   {
-	       byte[] res = val.toByteArray();
+	   // Length of the DER integer value for the unsigned bytes from 'start' to 'end'
+	   private static int integerLength(final byte[] data, final int start, final int end) {
+	       if (start == end) {
+	           return 1;
+	       }
+	       return end - start + (data[start] < 0 ? 1 : 0);
+	   }
 
-	       if (res[0] == 0)
-	       {
-	           final byte[] tmp = new byte[res.length - 1];
-	           System.arraycopy(res, 1, tmp, 0, tmp.length);
-	           res = tmp;
+	   private static int writeInteger(final byte[] out, int pos, final byte[] data, final int start, final int end, final int length) {
+	       out[pos++] = (byte) INTEGER;
+	       pos = writeLength(out, pos, length);
+	       // Leading zero for zero, or a sign byte for values with the high bit set
+	       if (length > end - start) {
+	           out[pos++] = 0;
 	       }
-	       return res;
+	       System.arraycopy(data, start, out, pos, end - start);
+	       return pos + end - start;
 	   }
 
 }
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
+import java.io.File;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
@@ -20,6 +21,7 @@ import java.security.Security;
 import junit.framework.TestCase;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.ejbca.cvc.example.FileHelper;
 
 /**
  * Tests CVCRequest
@@ -89,6 +91,30 @@ public class TestCVCRequest
    }
    
    
+   /** Check: Peeking at the header should give the same values as parsing */
+   public void testPeekHeader() throws Exception {
+      CVCAuthenticatedRequest authRequest = createTestAuthRequest(null, "SHA256WITHRSA");
+      CVCHeader header = CVCHeader.peek(authRequest.getDEREncoded());
+      assertTrue(header.isAuthenticatedRequest());
+      assertEquals(authRequest.getAuthorityReference().getConcatenated(), header.getAuthorityReference());
+      CVCertificateBody body = authRequest.getRequest().getCertificateBody();
+      assertEquals(body.getAuthorityReference().getConcatenated(), header.getBodyAuthorityReference());
+      assertEquals(body.getHolderReference().getConcatenated(), header.getHolderReference());
+      assertEquals(-1, header.getRole());
+      assertEquals(-1, header.getExpirationDate());
+
+      byte[] certData = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
+      body = CertificateParser.parseCertificate(certData).getCertificateBody();
+      header = CVCHeader.peek(certData);
+      assertFalse(header.isAuthenticatedRequest());
+      assertEquals(body.getAuthorityReference().getConcatenated(), header.getAuthorityReference());
+      assertEquals(body.getHolderReference().getConcatenated(), header.getHolderReference());
+      assertEquals(AuthorizationRoleEnum.CVCA.getValue() & 0xFF, header.getRole());
+      assertTrue(body.getAuthorizationTemplate().getAuthorizationField().getAuthRole().isCVCA());
+      assertEquals(body.getValidFrom().getTime(), header.getEffectiveDate());
+      assertEquals(body.getValidTo().getTime(), header.getExpirationDate());
+   }
+
    /** Check: Verify a request's outer signature */
    public void testVerifyRequestRSA() throws Exception {
       String algName = "SHA256WITHRSA";
@@ -14,24 +14,33 @@ package org.ejbca.cvc;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 import junit.framework.TestCase;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.ejbca.cvc.example.FileHelper;
+import org.ejbca.cvc.exception.ParseException;
 
 /**
  * Tests specific for CV Certificates
@@ -74,6 +83,140 @@ public class TestCVCertificate
       assertTrue("DER-coded public keys not equal", Arrays.equals(pubkey1, pubkey2));
    }
 
+   /** Check: Parsing from an array region or a ByteBuffer should give the same certificate */
+   public void testParseRegionAndByteBuffer() throws Exception {
+      CVCertificate cert1 = createTestCertificate();
+      byte[] der = cert1.getDEREncoded();
+
+      // Surround the certificate with other data
+      byte[] padded = new byte[der.length + 10];
+      Arrays.fill(padded, (byte)0x55);
+      System.arraycopy(der, 0, padded, 3, der.length);
+
+      CVCertificate cert2 = CertificateParser.parseCertificate(padded, 3, der.length + 7);
+      assertEquals("Certificates as text differ", cert1.getAsText(), cert2.getAsText());
+      assertTrue("Re-encoded data differs", Arrays.equals(der, cert2.getDEREncoded()));
+      assertTrue("Signature differs", Arrays.equals(cert1.getSignature(), cert2.getSignature()));
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(der.length * 2);
+      direct.put(der).put(der).flip();
+      CVCertificate cert3 = CertificateParser.parseCertificate(direct);
+      assertEquals("Position not advanced past the first certificate", der.length, direct.position());
+      CertificateParser.parseCertificate(direct);
+      assertFalse("Position not advanced past the second certificate", direct.hasRemaining());
+      assertEquals("Certificates as text differ", cert1.getAsText(), cert3.getAsText());
+
+      ByteBuffer heap = ByteBuffer.wrap(padded, 3, der.length);
+      CVCertificate cert4 = CertificateParser.parseCertificate(heap);
+      assertEquals("Certificates as text differ", cert1.getAsText(), cert4.getAsText());
+      assertEquals("Position not advanced", 3 + der.length, heap.position());
+
+      // A whole array is copied, so the caller may reuse it
+      byte[] buffer = der.clone();
+      CVCertificate cert5 = CertificateParser.parseCertificate(buffer);
+      Arrays.fill(buffer, (byte)0);
+      assertTrue("Signature changed with the array", Arrays.equals(cert1.getSignature(), cert5.getSignature()));
+      assertTrue("Encoding changed with the array", Arrays.equals(der, cert5.getDEREncoded()));
+
+      try {
+         CertificateParser.parseCertificate(der, 0, der.length - 1);
+         fail("Truncated data should throw ParseException");
+      }
+      catch( ParseException e ){
+         // This is expected
+      }
+   }
+
+   /** Check: A lazily decoded certificate should return the same values as a fully parsed one */
+   public void testLazyCertificate() throws Exception {
+      byte[] bytes = FileHelper.loadFile(new File("./src/test/resources/at_cert_19a.cvcert"));
+      CVCertificate cvc = CertificateParser.parseCertificate(bytes);
+      CVCertificateBody body = cvc.getCertificateBody();
+
+      LazyCVCertificate lazy = CertificateParser.parseLazyCertificate(bytes);
+      assertEquals("Holder reference differs", body.getHolderReference().getConcatenated(), lazy.getHolderReference().getConcatenated());
+      assertEquals("CA reference differs", body.getAuthorityReference().getConcatenated(), lazy.getAuthorityReference().getConcatenated());
+      assertEquals("Valid from differs", body.getValidFrom(), lazy.getValidFrom());
+      assertEquals("Valid to differs", body.getValidTo(), lazy.getValidTo());
+      assertSame("Field not cached", lazy.getHolderReference(), lazy.getHolderReference());
+      assertEquals("Role differs", body.getAuthorizationTemplate().getAuthorizationField().getAuthRole(),
+            lazy.getAuthorizationTemplate().getAuthorizationField().getAuthRole());
+      assertTrue("Public keys differ", Arrays.equals(body.getPublicKey().getDEREncoded(), lazy.getPublicKey().getDEREncoded()));
+      assertTrue("Signatures differ", Arrays.equals(cvc.getSignature(), lazy.getSignature()));
+      assertTrue("TBS differs", Arrays.equals(cvc.getTBS(), lazy.getTBS()));
+      assertTrue("Encoding differs", Arrays.equals(bytes, lazy.getDEREncoded()));
+      assertEquals("Certificates as text differ", cvc.getAsText(), lazy.getCertificate().getAsText());
+      try {
+         lazy.getCertificateExtensions();
+         fail("Should throw when trying to get extensions while none are present");
+      }
+      catch( NoSuchFieldException e ){
+         // This is expected
+      }
+
+      try {
+         CertificateParser.parseLazyCertificate(cvc.getTBS());
+         fail("A certificate body should not be accepted as a certificate");
+      }
+      catch( ParseException e ){
+         // This is expected
+      }
+
+      // A public key with an unknown OID is indexed, but can not be decoded
+      byte[] der = createTestCertificate().getDEREncoded();
+      byte[] oid = new byte[] { 0x06, 0x0A, 0x04, 0x00, 0x7F, 0x00, 0x07, 0x02, 0x02, 0x02, 0x01, 0x01 };
+      for( int i=0; i<der.length - oid.length; i++ ){
+         if( Arrays.equals(oid, Arrays.copyOfRange(der, i, i + oid.length)) ){
+            der[i + 7] = 0x7F;
+         }
+      }
+      lazy = CertificateParser.parseLazyCertificate(der);
+      assertEquals(HR_HOLDER_MNEMONIC, lazy.getHolderReference().getMnemonic());
+      try {
+         lazy.getPublicKey();
+         fail("A public key with an unknown OID should not be decoded");
+      }
+      catch( ParseException e ){
+         // This is expected
+      }
+   }
+
+   /** Check: A parsed certificate should keep its original encoding until it is modified */
+   public void testPreserveOriginalEncoding() throws Exception {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", "BC");
+      keyGen.initialize(1024, new SecureRandom());
+      KeyPair keyPair = keyGen.generateKeyPair();
+      CAReferenceField caRef = new CAReferenceField(CA_COUNTRY_CODE, CA_HOLDER_MNEMONIC, CA_SEQUENCE_NO);
+      HolderReferenceField holderRef = new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, HR_SEQUENCE_NO);
+      CVCertificate cert1 = CertificateGenerator.createTestCertificate(keyPair.getPublic(), keyPair.getPrivate(), caRef, holderRef, "SHA256WithRSA", AuthorizationRoleEnum.IS);
+      byte[] der = cert1.getDEREncoded();
+
+      // Re-write the outer length using three length bytes, which is valid BER but not DER
+      int valueLength = der.length - 5;
+      byte[] nonCanonical = new byte[der.length + 1];
+      nonCanonical[0] = der[0];
+      nonCanonical[1] = der[1];
+      nonCanonical[2] = (byte)0x83;
+      nonCanonical[3] = 0;
+      nonCanonical[4] = (byte)(valueLength >> 8);
+      nonCanonical[5] = (byte)valueLength;
+      assertEquals("Test certificate should have two length bytes", (byte)0x82, der[2]);
+      System.arraycopy(der, 5, nonCanonical, 6, valueLength);
+
+      CVCertificate cert2 = CertificateParser.parseCertificate(nonCanonical);
+      assertTrue("Original encoding not preserved", Arrays.equals(nonCanonical, cert2.getDEREncoded()));
+      assertTrue("Original encoding not preserved", Arrays.equals(nonCanonical, new CardVerifiableCertificate(cert2).getEncoded()));
+      assertTrue("TBS differs", Arrays.equals(cert1.getTBS(), cert2.getTBS()));
+      cert2.verify(keyPair.getPublic(), "BC");
+
+      // Modifying a nested field must invalidate the encodings all the way up
+      cert2.getCertificateBody().getPublicKey().setObjectIdentifier(CVCObjectIdentifiers.id_TA_RSA_v1_5_SHA_1);
+      byte[] modified = cert2.getDEREncoded();
+      assertFalse("Encoding not updated after modification", Arrays.equals(nonCanonical, modified));
+      CVCertificate cert3 = CertificateParser.parseCertificate(modified);
+      assertEquals("OID not updated", CVCObjectIdentifiers.id_TA_RSA_v1_5_SHA_1, cert3.getCertificateBody().getPublicKey().getObjectIdentifier());
+   }
+
    
    /** Check: The CVCertificate signature should be verifiable */
    public void testVerifyCertificate() throws Exception {
@@ -134,6 +277,75 @@ public class TestCVCertificate
          is_cert.verify(ca_KeyPair.getPublic(), "BC");
       }
    }
+
+
+   /** Check: Signature engines should be reused within a thread, and renewed when the provider changes or the cache is cleared */
+   public void testSignatureCache() throws Exception {
+      Signature first = SignatureCache.getSignature("SHA256WithRSA", "BC");
+      assertSame(first, SignatureCache.getSignature("SHA256WithRSA", "BC"));
+      assertNotSame(first, SignatureCache.getSignature("SHA1WithRSA", "BC"));
+      assertNotSame(first, SignatureCache.getSignature("SHA256WithRSA", "SunRsaSign"));
+
+      // A cached digest is reset before it is handed out again
+      MessageDigest digest = SignatureCache.getMessageDigest("SHA-256", "BC");
+      digest.update((byte)1);
+      assertSame(digest, SignatureCache.getMessageDigest("SHA-256", "BC"));
+      assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(), digest.digest()));
+
+      // The cache must not hand out engines of a provider that has been replaced.
+      // The original provider is put back at its position afterwards.
+      Provider original = Security.getProvider("BC");
+      int position = Arrays.asList(Security.getProviders()).indexOf(original) + 1;
+      try {
+         Security.removeProvider("BC");
+         Security.insertProviderAt(new BouncyCastleProvider(), position);
+         assertNotSame(first, SignatureCache.getSignature("SHA256WithRSA", "BC"));
+      }
+      finally {
+         Security.removeProvider("BC");
+         Security.insertProviderAt(original, position);
+      }
+
+      // Several sign and verify operations in a row with the cached engines
+      testVerifyCertificateChain();
+      testVerifyCertificateChain();
+
+      // The engines of this thread are dropped by clear(), and not cached while disabled
+      Signature cached = SignatureCache.getSignature("SHA256WithRSA", "BC");
+      SignatureCache.clear();
+      assertNotSame(cached, SignatureCache.getSignature("SHA256WithRSA", "BC"));
+      try {
+         SignatureCache.setEnabled(false);
+         assertNotSame(SignatureCache.getSignature("SHA256WithRSA", "BC"), SignatureCache.getSignature("SHA256WithRSA", "BC"));
+         assertNotSame(SignatureCache.getMessageDigest("SHA-256", "BC"), SignatureCache.getMessageDigest("SHA-256", "BC"));
+      }
+      finally {
+         SignatureCache.setEnabled(true);
+      }
+   }
+
+
+   /** Check: Signing a locally computed digest should give the same RSA signatures as signing the body */
+   public void testPreHashedSigning() throws Exception {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", "BC");
+      keyGen.initialize(1024, new SecureRandom());
+      KeyPair keyPair = keyGen.generateKeyPair();
+      CVCertificateBody body = createTestCertificate().getCertificateBody();
+      for( String algorithm : new String[] { "SHA1WithRSA", "SHA256WithRSA", "SHA512WithRSA", "SHA256WithRSAAndMGF1" } ){
+         CVCertificate cert = CertificateGenerator.createCertificate(keyPair.getPrivate(), algorithm, body, "BC", true);
+         Signature verifier = Signature.getInstance(algorithm, "BC");
+         verifier.initVerify(keyPair.getPublic());
+         verifier.update(cert.getTBS());
+         assertTrue(algorithm, verifier.verify(cert.getSignature()));
+         if( !algorithm.endsWith("MGF1") ){
+            CVCertificate expected = CertificateGenerator.createCertificate(keyPair.getPrivate(), algorithm, body, "BC");
+            assertTrue(algorithm, Arrays.equals(expected.getSignature(), cert.getSignature()));
+         }
+      }
+      assertNull(PreHashedSignature.getSignatureAlgorithm("SHA256WITHRSAANDMGF1"));
+      assertEquals("NONEWITHECDSA", PreHashedSignature.getSignatureAlgorithm("SHA224WITHECDSA"));
+      assertEquals("SHA-224", PreHashedSignature.getDigestAlgorithm("SHA224WITHECDSA"));
+   }
    
    
    /** Check: Validate CVCProvider */
@@ -155,6 +367,232 @@ public class TestCVCertificate
       Security.removeProvider("CVC");
    }
 
+   /** Check: Certificates in a mapped archive file should be indexed and decoded on request */
+   public void testArchive() throws Exception {
+      byte[] der1 = createTestCertificate().getDEREncoded();
+      byte[] der2 = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
+      File file = File.createTempFile("archive", ".cvcert");
+      try {
+         FileOutputStream out = new FileOutputStream(file);
+         out.write(der1);
+         out.write(der2);
+         out.write(der1);
+         out.close();
+
+         CVCArchive archive = CVCArchive.open(file.toPath());
+         try {
+            assertEquals(3, archive.size());
+            assertTrue(Arrays.equals(der2, archive.getEncoded(1)));
+            assertTrue(Arrays.equals(der1, archive.get(2).getDEREncoded()));
+            assertEquals(3, archive.stream(true).filter(r -> r.isSuccess()).count());
+         }
+         finally {
+            archive.close();
+         }
+
+         // Truncated file
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         raf.setLength(file.length() - 1);
+         raf.close();
+         try {
+            CVCArchive.open(file.toPath()).close();
+            fail("Truncated archive should not be accepted");
+         }
+         catch( ParseException e ){
+            // NOPMD expected
+         }
+      }
+      finally {
+         file.delete();
+      }
+   }
+
+   /** Check: Batch parsing keeps the order and reports failures per item */
+   public void testParseAll() throws Exception {
+      byte[] der1 = createTestCertificate().getDEREncoded();
+      byte[] der2 = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
+      List<byte[]> batch = new ArrayList<byte[]>();
+      for( int i=0; i<200; i++ ){
+         batch.add(i%2==0 ? der1 : der2);
+      }
+      batch.set(101, new byte[] { 0x7F, 0x21, 0x05, 0x00 });
+
+      List<ParseResult> results = CertificateParser.parseAll(batch);
+      assertEquals(batch.size(), results.size());
+      for( int i=0; i<batch.size(); i++ ){
+         if( i==101 ){
+            assertFalse(results.get(i).isSuccess());
+            assertNotNull(results.get(i).getException());
+         }
+         else {
+            assertTrue(Arrays.equals(batch.get(i), results.get(i).getCertificateOrThrow().getDEREncoded()));
+         }
+      }
+
+      assertEquals(199, CertificateParser.parseAll(batch.spliterator(), true).filter(r -> r.isSuccess()).count());
+   }
+
+   /** Check: A CVCDecoder should reject objects exceeding its limits before decoding them */
+   public void testDecoderLimits() throws Exception {
+      byte[] der = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
+      assertEquals(der.length, CVCDecoder.DEFAULT.check(der, 0, der.length));
+      assertTrue(Arrays.equals(der, CVCDecoder.DEFAULT.decodeCertificate(der).getDEREncoded()));
+
+      // Certificate, body, public key and modulus
+      assertNotNull(CVCDecoder.DEFAULT.withMaxDepth(4).decodeCertificate(der));
+      assertDecodingFails(CVCDecoder.DEFAULT.withMaxDepth(3), der);
+      assertNotNull(CVCDecoder.DEFAULT.withMaxTotalLength(der.length).decodeCertificate(der));
+      assertDecodingFails(CVCDecoder.DEFAULT.withMaxTotalLength(der.length-1), der);
+      assertDecodingFails(CVCDecoder.DEFAULT.withMaxFieldLength(64), der);
+
+      byte[] trailing = Arrays.copyOf(der, der.length + 1);
+      assertEquals(der.length, CVCDecoder.DEFAULT.check(trailing, 0, trailing.length));
+      assertDecodingFails(CVCDecoder.DEFAULT.withTrailingData(false), trailing);
+
+      // A length of four bytes, and a body longer than the certificate
+      assertDecodingFails(CVCDecoder.DEFAULT, new byte[] { 0x7F, 0x21, (byte)0x84, 0x7F, 0x7F, 0x7F, 0x7F });
+      assertDecodingFails(CVCDecoder.DEFAULT, new byte[] { 0x7F, 0x21, 0x04, 0x7F, 0x4E, 0x7F, 0x00 });
+   }
+
+   private void assertDecodingFails(CVCDecoder decoder, byte[] data) throws Exception {
+      try {
+         decoder.decodeCertificate(data);
+         fail("Decoding should fail");
+      }
+      catch( ParseException e ){
+         // Expected
+      }
+   }
+
+   /** Check: Objects arriving in fragments should be decoded once they are complete */
+   public void testIncrementalDecoder() throws Exception {
+      byte[] der1 = createTestCertificate().getDEREncoded();
+      byte[] der2 = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
+      byte[] both = new byte[der1.length + der2.length];
+      System.arraycopy(der1, 0, both, 0, der1.length);
+      System.arraycopy(der2, 0, both, der1.length, der2.length);
+
+      CVCIncrementalDecoder decoder = new CVCIncrementalDecoder();
+      List<CVCObject> decoded = new ArrayList<CVCObject>();
+      ByteBuffer buffer = ByteBuffer.allocate(7);
+      for( int pos=0; pos<both.length; pos+=7 ){
+         buffer.put(both, pos, Math.min(7, both.length - pos));
+         buffer.flip();
+         CVCObject obj;
+         while( (obj = decoder.decode(buffer))!=null ){
+            decoded.add(obj);
+         }
+         buffer.compact();
+      }
+      assertFalse(decoder.hasPartialObject());
+      assertEquals(2, decoded.size());
+      assertTrue(Arrays.equals(der1, ((CVCertificate)decoded.get(0)).getDEREncoded()));
+      assertTrue(Arrays.equals(der2, ((CVCertificate)decoded.get(1)).getDEREncoded()));
+
+      // Too large objects are rejected as soon as the length is known
+      decoder = new CVCIncrementalDecoder(100);
+      try {
+         decoder.decode(ByteBuffer.wrap(der1, 0, 5));
+         fail("Length above the limit should be rejected");
+      }
+      catch( ParseException e ){
+         // NOPMD expected
+      }
+
+      // The default limit is small, and a given CVCDecoder applies its limits
+      try {
+         new CVCIncrementalDecoder().decode(ByteBuffer.wrap(new byte[] { 0x7F, 0x21, (byte)0x83, 0x01, 0x00, 0x00 }));
+         fail("Length above the default limit should be rejected");
+      }
+      catch( ParseException e ){
+         // NOPMD expected
+      }
+      decoder = new CVCIncrementalDecoder(CVCDecoder.DEFAULT.withMaxTotalLength(der1.length - 1));
+      try {
+         decoder.decode(ByteBuffer.wrap(der1, 0, 5));
+         fail("Length above the decoder's limit should be rejected");
+      }
+      catch( ParseException e ){
+         // NOPMD expected
+      }
+      decoder = new CVCIncrementalDecoder(CVCDecoder.DEFAULT.withMaxDepth(2));
+      try {
+         decoder.decode(ByteBuffer.wrap(der1));
+         fail("The decoder's depth limit should apply");
+      }
+      catch( ParseException e ){
+         // NOPMD expected
+      }
+   }
+
+   /** Check: A stream with concatenated certificates should be read one certificate at a time */
+   public void testGenerateCertificates() throws Exception {
+      Security.addProvider(new CVCProvider());
+      try {
+         byte[] der1 = createTestCertificate().getDEREncoded();
+         byte[] der2 = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
+         byte[] both = new byte[der1.length + der2.length];
+         System.arraycopy(der1, 0, both, 0, der1.length);
+         System.arraycopy(der2, 0, both, der1.length, der2.length);
+
+         CertificateFactory factory = CertificateFactory.getInstance("CVC");
+         Collection<? extends Certificate> certs = factory.generateCertificates(new ByteArrayInputStream(both));
+         assertEquals(2, certs.size());
+         assertTrue(Arrays.equals(der2, new ArrayList<Certificate>(certs).get(1).getEncoded()));
+         assertEquals(0, factory.generateCertificates(new ByteArrayInputStream(new byte[0])).size());
+
+         // The stream must be left positioned after the first certificate
+         ByteArrayInputStream bin = new ByteArrayInputStream(both);
+         assertTrue(Arrays.equals(der1, factory.generateCertificate(bin).getEncoded()));
+         assertEquals(der2.length, bin.available());
+
+         Iterator<Certificate> iter = new JDKCVCertificateFactory().generateCertificateIterator(new ByteArrayInputStream(both));
+         assertTrue(Arrays.equals(der1, iter.next().getEncoded()));
+         assertTrue(iter.hasNext());
+         assertTrue(Arrays.equals(der2, iter.next().getEncoded()));
+         assertFalse(iter.hasNext());
+
+         // Truncated data
+         try {
+            factory.generateCertificates(new ByteArrayInputStream(Arrays.copyOf(both, both.length - 1)));
+            fail("Truncated stream should not be accepted");
+         }
+         catch( CertificateException e ){
+            // NOPMD expected
+         }
+         // The iterator reports the error from next(), which ends the iteration
+         iter = new JDKCVCertificateFactory().generateCertificateIterator(new ByteArrayInputStream(Arrays.copyOf(both, both.length - 1)));
+         assertTrue(Arrays.equals(der1, iter.next().getEncoded()));
+         assertTrue(iter.hasNext());
+         try {
+            iter.next();
+            fail("Truncated stream should not be accepted");
+         }
+         catch( IllegalStateException e ){
+            assertTrue(e.getCause() instanceof CertificateException);
+         }
+         assertFalse(iter.hasNext());
+
+         // A huge announced length, or another tag, is rejected before any value bytes are read
+         byte[][] headers = new byte[][] {
+            { 0x7F, 0x21, (byte)0x83, (byte)0xFF, (byte)0xFF, (byte)0xFF },
+            { 0x7F, 0x4E, (byte)0x83, 0x00, 0x10, 0x00 }
+         };
+         for( byte[] header : headers ){
+            try {
+               factory.generateCertificate(new ByteArrayInputStream(header));
+               fail("Header should not be accepted");
+            }
+            catch( CertificateException e ){
+               assertFalse(e.getMessage().contains("end of stream"));
+            }
+         }
+      }
+      finally {
+         Security.removeProvider("CVC");
+      }
+   }
+
 	public void testExternalCert()throws Exception {
 	      byte[] bytes = FileHelper.loadFile(new File("./src/test/resources/GO_CVCA_RSA2008.cvcert"));
 	      CVCertificate cvc = (CVCertificate)CertificateParser.parseCVCObject(bytes);
@@ -13,8 +13,12 @@
 package org.ejbca.cvc;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
@@ -22,6 +26,7 @@ import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.ejbca.cvc.exception.ParseException;
 
 /**
@@ -90,6 +95,22 @@ public class TestDatafields
       assertEquals(127,  readLength(ENCODED_LENGTH_127 ));
       assertEquals(128,  readLength(ENCODED_LENGTH_128 ));
       assertEquals(1288, readLength(ENCODED_LENGTH_1288));
+      assertEquals(0xFFFF, readLength(new byte[] {(byte)0x82, (byte)0xFF, (byte)0xFF}));
+      assertEquals(0x10000, readLength(new byte[] {(byte)0x83, 0x01, 0x00, 0x00}));
+      try {
+         readLength(new byte[] {(byte)0x84, 0x01, 0x00, 0x00, 0x00});
+         fail("Four length bytes should not be accepted");
+      }
+      catch( IOException e ){
+         // Expected
+      }
+      try {
+         readLength(new byte[] {(byte)0x82, 0x01});
+         fail("Truncated length should not be accepted");
+      }
+      catch( IOException e ){
+         // Expected
+      }
    }
 
    // Helper method that decodes length value from a byte array
@@ -313,6 +334,37 @@ public class TestDatafields
    }
 
  
+   /** Check: Dates are kept as epoch days, with validity checked on milliseconds */
+   public void testDateEpochDay() throws Exception {
+      // 2010-01-31 is day 14640 since 1970-01-01
+      DateField from = new DateField(CVCTagEnum.EFFECTIVE_DATE, new byte[] { 0x01, 0x00, 0x00, 0x01, 0x03, 0x01 });
+      DateField to = new DateField(CVCTagEnum.EXPIRATION_DATE, new byte[] { 0x01, 0x00, 0x00, 0x01, 0x03, 0x01 });
+      long midnight = 14640L * 24 * 60 * 60 * 1000;
+      assertEquals(14640, from.getEpochDay());
+      assertEquals(midnight, from.getDate().getTime());
+      assertEquals(midnight + (23*3600 + 59*60 + 59) * 1000L, to.getDate().getTime());
+      assertFalse(from.isValidAt(midnight - 1));
+      assertTrue(from.isValidAt(midnight));
+      assertTrue(to.isValidAt(to.getDate().getTime()));
+      assertFalse(to.isValidAt(to.getDate().getTime() + 1));
+      assertEquals("2010-01-31", from.valueAsText());
+
+      // Out of range days roll over as with a lenient Calendar: 2010-02-30 is 2010-03-02
+      DateField rolled = new DateField(CVCTagEnum.EFFECTIVE_DATE, new byte[] { 0x01, 0x00, 0x00, 0x02, 0x03, 0x00 });
+      assertTrue(Arrays.equals(new byte[] { 0x01, 0x00, 0x00, 0x03, 0x00, 0x02 }, rolled.getEncoded()));
+
+      // Only the date in GMT is kept from a Date
+      DateField fromDate = new DateField(CVCTagEnum.EFFECTIVE_DATE, new Date(midnight + 1000));
+      assertEquals(14640, fromDate.getEpochDay());
+
+      // Serialized with the Date field of earlier versions
+      assertEquals(Date.class, ObjectStreamClass.lookup(DateField.class).getField("date").getType());
+      DateField copy = (DateField)serializeCopy(to);
+      assertEquals(14640, copy.getEpochDay());
+      assertEquals(to.getDate(), copy.getDate());
+   }
+
+ 
    /** Check: Encoding of the OID field */
    public void testOIDField() throws Exception {
       String oidValue = "1.2.3";
@@ -334,5 +386,72 @@ public class TestDatafields
       byte[] der2 = oid2.getEncoded();
       assertTrue("Byte arrays(2) not equal", Arrays.equals(der2, oidRef2));
    }
+
+   /** Check: OIDs are decoded without BouncyCastle, and the values of decoded OIDs are shared */
+   public void testOIDCodec() throws Exception {
+      String[] values = { "0.0", "1.39.5", "2.999.3", "2.16.840.1.113719.1.1.4.1.2", "1.2.9223372036854775807", "1.2.18446744073709551616" };
+      for( String value : values ){
+         byte[] der = new OIDField(value).getEncoded();
+         assertTrue(value, Arrays.equals(new ASN1ObjectIdentifier(value).getEncoded(), concat(new byte[] {0x06, (byte)der.length}, der)));
+         assertEquals(value, new OIDField(der).getValue());
+      }
+
+      byte[] ecdsa = CVCObjectIdentifiers.id_TA_ECDSA_SHA_256.getEncoded();
+      byte[] data = concat(new byte[] {0x00}, ecdsa);
+      OIDField decoded = OIDField.intern(data, 1, ecdsa.length);
+      assertNotSame(CVCObjectIdentifiers.id_TA_ECDSA_SHA_256, decoded);
+      assertEquals(CVCObjectIdentifiers.id_TA_ECDSA_SHA_256, decoded);
+      assertNull(decoded.getParent());
+      byte[] other = new OIDField("1.2.3.4").getEncoded();
+      OIDField interned = OIDField.intern(other, 0, other.length);
+      OIDField again = OIDField.intern(other.clone(), 0, other.length);
+      assertNotSame(interned, again);
+      assertSame(interned.getValue(), again.getValue());
+      assertEquals(new OIDField("1.2.3.4"), interned);
+      assertEquals(new OIDField("1.2.3.4").hashCode(), interned.hashCode());
+
+      byte[][] invalid = { {}, {0x2A, (byte)0x81}, {0x2A, (byte)0x80, 0x01} };
+      for( byte[] der : invalid ){
+         try {
+            new OIDField(der);
+            fail("Invalid OID encoding should not be accepted");
+         }
+         catch( IllegalArgumentException e ){
+            // Expected
+         }
+      }
+   }
+
+   static Object serializeCopy(Object object) throws Exception {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bout);
+      out.writeObject(object);
+      out.close();
+      return new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+   }
+
+   private static byte[] concat(byte[] a, byte[] b) {
+      byte[] result = Arrays.copyOf(a, a.length + b.length);
+      System.arraycopy(b, 0, result, a.length, b.length);
+      return result;
+   }
+
+   /** Check: Lengths and integers are encoded with the minimal number of bytes */
+   public void testEncodeLength() throws Exception {
+      assertTrue(Arrays.equals(new byte[]{0x7F}, CVCObject.encodeLength(0x7F)));
+      assertTrue(Arrays.equals(new byte[]{(byte)0x81, (byte)0x80}, CVCObject.encodeLength(0x80)));
+      assertTrue(Arrays.equals(new byte[]{(byte)0x82, 0x01, 0x00}, CVCObject.encodeLength(0x100)));
+      assertTrue(Arrays.equals(new byte[]{(byte)0x83, 0x01, 0x00, 0x00}, CVCObject.encodeLength(0x10000)));
+
+      assertTrue(Arrays.equals(new byte[]{0x00}, CVCObject.toByteArray(0)));
+      assertTrue(Arrays.equals(new byte[]{0x7F, 0x21}, CVCObject.toByteArray(0x7F21)));
+      assertTrue(Arrays.equals(new byte[]{(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF}, CVCObject.toByteArray(-1)));
+
+      IntegerField intField = new IntegerField(CVCTagEnum.COFACTOR_F, 0x1234);
+      assertEquals(intField.getEncoded().length, intField.getValueLength());
+      byte[] der = new byte[intField.getEncodedLength()];
+      assertEquals(der.length, intField.encodeTo(der, 0));
+      assertTrue(Arrays.equals(new byte[]{(byte)0x87, 0x02, 0x12, 0x34}, der));
+   }
    
 }
\ No newline at end of file
@@ -13,22 +13,36 @@
 package org.ejbca.cvc;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.security.Signature;
 import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import junit.framework.TestCase;
 
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.ejbca.cvc.example.FileHelper;
+import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.exception.ParseException;
+import org.ejbca.cvc.util.BCECUtil;
 
 /**
  * Tests specific for ECC CV Certificates
@@ -112,6 +126,106 @@ extends TestCase implements CVCTest {
 	}
 
 
+	/** Check: A parsed request key reused in an IS certificate must not keep the request's encoding */
+	public void testReuseParsedRequestKey() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+		keyGen.initialize(239, new SecureRandom());
+		KeyPair keyPair = keyGen.generateKeyPair();
+
+		CAReferenceField caRef = new CAReferenceField(CA_COUNTRY_CODE, CA_HOLDER_MNEMONIC, CA_SEQUENCE_NO);
+		HolderReferenceField holderRef = new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, HR_SEQUENCE_NO);
+		CVCertificate request = CertificateGenerator.createRequest(keyPair, "SHA256WithECDSA", caRef, holderRef);
+		CVCertificate parsedRequest = CertificateParser.parseCertificate(request.getDEREncoded());
+		CVCPublicKey requestKey = parsedRequest.getCertificateBody().getPublicKey();
+		assertNotNull("Request should contain domain parameters", requestKey.getOptionalSubfield(CVCTagEnum.MODULUS));
+
+		Calendar cal = Calendar.getInstance();
+		Date dateFrom = cal.getTime();
+		cal.add(Calendar.DAY_OF_MONTH, 3);
+		CVCertificate isCert = CertificateGenerator.createCertificate(requestKey, keyPair.getPrivate(), "SHA256WithECDSA",
+				caRef, holderRef, AuthorizationRoleEnum.IS, AccessRightsIS.DG3_AND_DG4(), dateFrom, cal.getTime(), "BC");
+		CVCertificate parsedCert = CertificateParser.parseCertificate(isCert.getDEREncoded());
+		assertNull("IS certificate should not contain domain parameters",
+				parsedCert.getCertificateBody().getPublicKey().getOptionalSubfield(CVCTagEnum.MODULUS));
+		parsedCert.verify(keyPair.getPublic(), "BC");
+
+		// The request itself must still have its original encoding
+		assertTrue("Request encoding changed", Arrays.equals(request.getDEREncoded(), parsedRequest.getDEREncoded()));
+	}
+
+
+	/** Check: Visiting a certificate reports the same fields as parsing it, with 0x82 resolved from the key OID */
+	public void testVisitCertificate() throws Exception {
+		byte[] bytes = FileHelper.loadFile(new File("./src/test/resources/C_CZCVCADCZ000.cvcert"));
+		final String holderRef = CertificateParser.parseCertificate(bytes).getCertificateBody().getHolderReference().getConcatenated();
+		final List<CVCTagEnum> tags = new ArrayList<CVCTagEnum>();
+		final int[] depth = new int[1];
+		CVCVisitor visitor = new CVCVisitor() {
+			public boolean startSequence(CVCTagEnum tag, int length) {
+				tags.add(tag);
+				depth[0]++;
+				return true;
+			}
+			public void endSequence(CVCTagEnum tag) {
+				depth[0]--;
+			}
+			public void primitive(CVCTagEnum tag, byte[] buffer, int offset, int length) {
+				tags.add(tag);
+				if( tag==CVCTagEnum.HOLDER_REFERENCE ){
+					assertEquals(holderRef, new String(buffer, offset, length));
+				}
+			}
+		};
+		assertEquals(bytes.length, CertificateParser.visit(bytes, 0, bytes.length, visitor));
+		assertEquals(0, depth[0]);
+		assertTrue(tags.contains(CVCTagEnum.COEFFICIENT_A));
+		assertFalse(tags.contains(CVCTagEnum.EXPONENT));
+		assertEquals(CVCTagEnum.ROLE_AND_ACCESS_RIGHTS, tags.get(tags.size()-4));
+
+		// Skipping the public key
+		tags.clear();
+		visitor = new CVCVisitor() {
+			public boolean startSequence(CVCTagEnum tag, int length) {
+				tags.add(tag);
+				return tag!=CVCTagEnum.PUBLIC_KEY;
+			}
+			public void endSequence(CVCTagEnum tag) {
+			}
+			public void primitive(CVCTagEnum tag, byte[] buffer, int offset, int length) {
+				tags.add(tag);
+			}
+		};
+		CertificateParser.visit(bytes, 0, bytes.length, visitor);
+		assertTrue(tags.contains(CVCTagEnum.PUBLIC_KEY));
+		assertFalse(tags.contains(CVCTagEnum.MODULUS));
+		assertTrue(tags.contains(CVCTagEnum.EXPIRATION_DATE));
+
+		// Deeply nested sequences are rejected instead of overflowing the stack
+		int levels = 100000;
+		int[] lengths = new int[levels];
+		int length = 3;
+		for( int i=0; i<levels; i++ ){
+			lengths[i] = length;
+			length += 2 + CVCObject.encodeLength(length).length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		for( int i=levels-1; i>=0; i-- ){
+			out.write(0x7F);
+			out.write(0x21);
+			out.write(CVCObject.encodeLength(lengths[i]));
+		}
+		out.write(new byte[] { 0x5F, 0x37, 0x00 });
+		byte[] nested = out.toByteArray();
+		try {
+			CertificateParser.visit(nested, 0, nested.length, visitor);
+			fail("Deeply nested input should not be accepted");
+		}
+		catch( ParseException e ){
+			assertTrue(e.getMessage(), e.getMessage().contains("nested"));
+		}
+	}
+
+
 	/** Check: the signature for a CardVerifiableCertificate should verify */
 	public void testVerifyCertificate() throws Exception {
 		// Skaffa nytt nyckelpar
@@ -131,6 +245,249 @@ extends TestCase implements CVCTest {
 		cvc.verify(keyPair.getPublic(), "BC");
 	}
 
+	/** Check: Plain ECDSA signatures of one provider should verify with the X9.62 conversion of another, and vice versa */
+	public void testPlainSignatures() throws Exception {
+		assertEquals("SHA256WITHPLAIN-ECDSA", PlainECDSA.getPlainAlgorithm("SHA256WITHECDSA", "BC"));
+		assertNull(PlainECDSA.getPlainAlgorithm("SHA256WITHRSA", "BC"));
+		assertNull(PlainECDSA.getPlainAlgorithm("SHA256WITHECDSA", "SunEC"));
+
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC", "SunEC");
+		keyGen.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+		KeyPair keyPair = keyGen.generateKeyPair();
+		CAReferenceField caRef         = new CAReferenceField(CA_COUNTRY_CODE, CA_HOLDER_MNEMONIC, CA_SEQUENCE_NO);
+		HolderReferenceField holderRef = new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, HR_SEQUENCE_NO);
+		Date dateFrom = new Date();
+		Date dateTo = new Date(dateFrom.getTime() + 24L*3600*1000);
+		for( String provider : new String[] { "BC", "SunEC" } ){
+			for( int i=0; i<20; i++ ){
+				CVCertificate cert = CertificateGenerator.createCertificate(keyPair.getPublic(), keyPair.getPrivate(), "SHA256WithECDSA",
+						caRef, holderRef, AuthorizationRoleEnum.IS, AccessRightsIS.DG3_AND_DG4(), dateFrom, dateTo, provider);
+				assertEquals(64, cert.getSignature().length);
+				cert.verify(keyPair.getPublic(), "BC");
+				cert.verify(keyPair.getPublic(), "SunEC");
+			}
+		}
+	}
+
+	/** Check: ECDSA signatures over a locally computed digest should verify */
+	public void testPreHashedSigning() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+		keyGen.initialize(new ECGenParameterSpec("brainpoolP256r1"), new SecureRandom());
+		KeyPair keyPair = keyGen.generateKeyPair();
+		CAReferenceField caRef         = new CAReferenceField(CA_COUNTRY_CODE, CA_HOLDER_MNEMONIC, CA_SEQUENCE_NO);
+		HolderReferenceField holderRef = new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, HR_SEQUENCE_NO);
+		CVCertificateBody body = CertificateGenerator.createTestCertificate(keyPair.getPublic(), keyPair.getPrivate(),
+				caRef, holderRef, "SHA256WithECDSA", AuthorizationRoleEnum.CVCA).getCertificateBody();
+		for( String algorithm : new String[] { "SHA1WithECDSA", "SHA224WithECDSA", "SHA256WithECDSA", "SHA384WithECDSA", "SHA512WithECDSA" } ){
+			CVCertificate cert = CertificateGenerator.createCertificate(keyPair.getPrivate(), algorithm, body, "BC", true);
+			assertEquals(64, cert.getSignature().length);
+			Signature verifier = Signature.getInstance(algorithm, "BC");
+			verifier.initVerify(keyPair.getPublic());
+			verifier.update(cert.getTBS());
+			assertTrue(algorithm, verifier.verify(BCECUtil.convertCVCSigToX962(algorithm, cert.getSignature())));
+		}
+		CertificateGenerator.createCertificate(keyPair.getPrivate(), "SHA256WithECDSA", body, "BC", true).verify(keyPair.getPublic(), "BC");
+	}
+
+	/** Check: Prepared certificates should be signed in a batch and get the signatures attached */
+	public void testBatchIssuance() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+		keyGen.initialize(new ECGenParameterSpec("brainpoolP256r1"), new SecureRandom());
+		final KeyPair caKeyPair = keyGen.generateKeyPair();
+		CAReferenceField caRef = new CAReferenceField(CA_COUNTRY_CODE, CA_HOLDER_MNEMONIC, CA_SEQUENCE_NO);
+		List<PreparedCertificate> prepared = new ArrayList<PreparedCertificate>();
+		for( int i=0; i<5; i++ ){
+			HolderReferenceField holderRef = new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, "0000" + i);
+			CVCertificateBody body = CertificateGenerator.createTestCertificate(keyGen.generateKeyPair().getPublic(), caKeyPair.getPrivate(),
+					caRef, holderRef, "SHA256WithECDSA", AuthorizationRoleEnum.IS).getCertificateBody();
+			prepared.add(CertificateGenerator.prepareCertificate(body, "SHA256WithECDSA", caKeyPair.getPrivate()));
+		}
+		PreparedCertificate first = prepared.get(0);
+		assertEquals("NONEWITHECDSA", first.getPreHashedAlgorithm());
+		assertSame(first.getDigest(), first.getDigest());
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(first.getTBS()), first.getDigest()));
+
+		// Sign the digests, as an HSM would
+		List<CVCertificate> certs = CertificateGenerator.createCertificates(prepared, new BatchSigner() {
+			public List<byte[]> sign(List<PreparedCertificate> certificates) throws SignatureException {
+				try {
+					List<byte[]> signatures = new ArrayList<byte[]>();
+					Signature signer = Signature.getInstance("NONEwithECDSA", "BC");
+					for( PreparedCertificate cert : certificates ){
+						signer.initSign(caKeyPair.getPrivate());
+						signer.update(cert.getSignatureInput());
+						signatures.add(signer.sign());
+					}
+					return signatures;
+				}
+				catch( Exception e ){
+					throw new SignatureException(e);
+				}
+			}
+		});
+		assertEquals(5, certs.size());
+		for( CVCertificate cert : certs ){
+			assertEquals(64, cert.getSignature().length);
+			cert.verify(caKeyPair.getPublic(), "BC");
+			CertificateParser.parseCertificate(cert.getDEREncoded()).verify(caKeyPair.getPublic(), "BC");
+		}
+
+		// Plain signatures of the TBS
+		List<PreparedCertificate> preparedAgain = new ArrayList<PreparedCertificate>();
+		for( CVCertificate cert : certs ){
+			preparedAgain.add(CertificateGenerator.prepareCertificate(cert.getCertificateBody(), "SHA256WithECDSA", caKeyPair.getPublic()));
+		}
+		prepared = preparedAgain;
+		List<byte[]> plainSignatures = new ArrayList<byte[]>();
+		Signature signer = Signature.getInstance("SHA256WITHPLAIN-ECDSA", "BC");
+		for( PreparedCertificate cert : prepared ){
+			signer.initSign(caKeyPair.getPrivate());
+			signer.update(cert.getTBS());
+			plainSignatures.add(signer.sign());
+		}
+
+		// A signature that does not match the key leaves the whole batch unsigned
+		List<byte[]> wrongSignatures = new ArrayList<byte[]>(plainSignatures);
+		wrongSignatures.set(3, Arrays.copyOf(plainSignatures.get(3), 63));
+		try {
+			PreparedCertificate.attachSignatures(prepared, wrongSignatures, true);
+			fail("A signature of the wrong length should not be accepted");
+		}
+		catch( SignatureException e ){
+			// Expected
+		}
+		for( PreparedCertificate cert : prepared ){
+			assertNull(cert.getCertificate().getOptionalSubfield(CVCTagEnum.SIGNATURE));
+		}
+
+		// A body that has been modified after preparing can not be signed
+		CVCertificateBody body = CertificateGenerator.createTestCertificate(keyGen.generateKeyPair().getPublic(), caKeyPair.getPrivate(),
+				caRef, new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, "00009"), "SHA256WithECDSA", AuthorizationRoleEnum.IS).getCertificateBody();
+		PreparedCertificate modified = CertificateGenerator.prepareCertificate(body, "SHA256WithECDSA", caKeyPair.getPublic());
+		body.addSubfield(new HolderReferenceField(HR_COUNTRY_CODE, HR_HOLDER_MNEMONIC, "00010"), true);
+		try {
+			modified.attachPlainSignature(plainSignatures.get(0));
+			fail("A modified body should not be signed");
+		}
+		catch( ConstructionException e ){
+			// Expected
+		}
+
+		for( CVCertificate cert : PreparedCertificate.attachSignatures(prepared, plainSignatures, true) ){
+			cert.verify(caKeyPair.getPublic(), "BC");
+		}
+		try {
+			PreparedCertificate.attachSignatures(prepared, plainSignatures.subList(0, 4), true);
+			fail("A missing signature should not be accepted");
+		}
+		catch( SignatureException e ){
+			// Expected
+		}
+	}
+
+
+	/** Check: DV and IS keys can verify with the domain parameters of the CVCA */
+	public void testDomainParameterResolver() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+		keyGen.initialize(239, new SecureRandom());
+		KeyPair cvcaKeyPair = keyGen.generateKeyPair();
+		KeyPair dvKeyPair = keyGen.generateKeyPair();
+		KeyPair isKeyPair = keyGen.generateKeyPair();
+		CAReferenceField cvcaRef = new CAReferenceField("SE", "CVCA", "00001");
+		CAReferenceField dvRef = new CAReferenceField("SE", "DV", "00001");
+		Date dateFrom = new Date();
+		Date dateTo = new Date(dateFrom.getTime() + 24*3600*1000L);
+
+		CVCertificate cvca = CertificateGenerator.createCertificate(cvcaKeyPair.getPublic(), cvcaKeyPair.getPrivate(), "SHA256WithECDSA",
+				cvcaRef, new HolderReferenceField("SE", "CVCA", "00001"), AuthorizationRoleEnum.CVCA, AccessRightsIS.DG3_AND_DG4(), dateFrom, dateTo, "BC");
+		CVCertificate dv = CertificateGenerator.createCertificate(dvKeyPair.getPublic(), cvcaKeyPair.getPrivate(), "SHA256WithECDSA",
+				cvcaRef, new HolderReferenceField("SE", "DV", "00001"), AuthorizationRoleEnum.DV_D, AccessRightsIS.DG3_AND_DG4(), dateFrom, dateTo, "BC");
+		CVCertificate is = CertificateGenerator.createCertificate(isKeyPair.getPublic(), dvKeyPair.getPrivate(), "SHA256WithECDSA",
+				dvRef, new HolderReferenceField("SE", "IS", "00001"), AuthorizationRoleEnum.IS, AccessRightsIS.DG3_AND_DG4(), dateFrom, dateTo, "BC");
+		cvca = CertificateParser.parseCertificate(cvca.getDEREncoded());
+		dv = CertificateParser.parseCertificate(dv.getDEREncoded());
+		is = CertificateParser.parseCertificate(is.getDEREncoded());
+		assertNull(((PublicKeyEC)dv.getCertificateBody().getPublicKey()).getParams());
+
+		DomainParameterResolver resolver = new DomainParameterResolver();
+		try {
+			resolver.getVerifyingKey(dv);
+			fail("The domain parameters of the DV should not be known before the CVCA has been added");
+		}
+		catch( IllegalArgumentException e ){
+			// Expected
+		}
+		assertTrue(resolver.addCertificate(cvca));
+		dv.verify(resolver.getVerifyingKey(cvca), "BC");
+		is.verify(resolver.getVerifyingKey(dv), "BC");
+
+		PublicKeyEC cvcaKey = (PublicKeyEC)cvca.getCertificateBody().getPublicKey();
+		assertSame(cvcaKey.getParams(), resolver.getParams("SEDV00001"));
+		assertSame(cvcaKey.getParams(), ((PublicKeyEC)dv.getCertificateBody().getPublicKey()).getParams());
+		// The inherited parameters are not encoded
+		assertEquals(2, dv.getCertificateBody().getPublicKey().getEncodableFields().size());
+
+		// The same CVCA can be added again, but not other parameters for its holder reference
+		assertTrue(resolver.addCertificate(CertificateParser.parseCertificate(cvca.getDEREncoded())));
+		KeyPairGenerator otherKeyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+		otherKeyGen.initialize(new ECGenParameterSpec("brainpoolP256r1"), new SecureRandom());
+		KeyPair otherKeyPair = otherKeyGen.generateKeyPair();
+		CVCertificate other = CertificateGenerator.createCertificate(otherKeyPair.getPublic(), otherKeyPair.getPrivate(), "SHA256WithECDSA",
+				cvcaRef, new HolderReferenceField("SE", "CVCA", "00001"), AuthorizationRoleEnum.CVCA, AccessRightsIS.DG3_AND_DG4(), dateFrom, dateTo, "BC");
+		try {
+			resolver.addCertificate(CertificateParser.parseCertificate(other.getDEREncoded()));
+			fail("Other domain parameters should not replace those recorded for a holder reference");
+		}
+		catch( IllegalArgumentException e ){
+			// Expected
+		}
+		assertSame(cvcaKey.getParams(), resolver.getParams("SECVCA00001"));
+
+		// A key without domain parameters and without an authority reference, as in a request
+		CVCPublicKey dvKey = CertificateParser.parseCertificate(dv.getDEREncoded()).getCertificateBody().getPublicKey();
+		CVCertificate request = new CVCertificate(new CVCertificateBody(null, dvKey, new HolderReferenceField("SE", "DV", "00002")));
+		assertFalse(resolver.addCertificate(request));
+		assertNull(resolver.getParams("SEDV00002"));
+	}
+
+	/** Check: ECDSA signatures should convert between the X9.62 and CVC formats as with the ASN.1 classes */
+	public void testSignatureConversion() throws Exception {
+		SecureRandom random = new SecureRandom();
+		for( int i=0; i<200; i++ ){
+			// Values of different lengths, with and without the high bit set
+			BigInteger r = new BigInteger(8 + random.nextInt(512), random);
+			BigInteger s = new BigInteger(8 + random.nextInt(512), random);
+			int orderLength = (Math.max(r.bitLength(), s.bitLength()) + 7) / 8;
+			ASN1EncodableVector v = new ASN1EncodableVector();
+			v.add(new ASN1Integer(r));
+			v.add(new ASN1Integer(s));
+			byte[] x962 = new DERSequence(v).getEncoded();
+
+			byte[] plain = BCECUtil.convertX962SigToCVC("SHA256WithECDSA", x962, orderLength);
+			assertEquals(orderLength * 2, plain.length);
+			assertEquals(r, new BigInteger(1, Arrays.copyOfRange(plain, 0, orderLength)));
+			assertEquals(s, new BigInteger(1, Arrays.copyOfRange(plain, orderLength, plain.length)));
+			assertTrue(Arrays.equals(plain, BCECUtil.convertX962SigToCVC("SHA256WithECDSA", x962)));
+			assertTrue(Arrays.equals(x962, BCECUtil.convertCVCSigToX962("SHA256WithECDSA", plain)));
+
+			// Padded to the curve order
+			byte[] padded = BCECUtil.convertX962SigToCVC("SHA256WithECDSA", x962, orderLength + 2);
+			assertEquals(orderLength * 2 + 4, padded.length);
+			assertTrue(Arrays.equals(x962, BCECUtil.convertCVCSigToX962("SHA256WithECDSA", padded)));
+		}
+		// RSA signatures are not converted
+		byte[] sig = new byte[] { 1, 2, 3 };
+		assertSame(sig, BCECUtil.convertX962SigToCVC("SHA256WithRSA", sig));
+		assertSame(sig, BCECUtil.convertCVCSigToX962("SHA256WithRSA", sig));
+		try {
+			BCECUtil.convertX962SigToCVC("SHA256WithECDSA", new byte[] { 0x30, 0x03, 0x02, 0x01, (byte)0x80 });
+			fail("Negative integer should not be accepted");
+		}
+		catch( IOException e ){
+			// Expected
+		}
+	}
+
 
 	/** Check: A is should be possible to verify a certificate chain */
 	public void testVerifyCertificateChain() throws Exception {
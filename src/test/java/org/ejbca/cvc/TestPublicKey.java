@@ -20,17 +20,21 @@ import java.security.SecureRandom;
 import java.security.Security;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
 import java.security.spec.EllipticCurve;
+import java.util.Arrays;
 import java.util.Date;
 
 import junit.framework.TestCase;
 
 import org.bouncycastle.jce.ECPointUtil;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECNamedCurveSpec;
 import org.bouncycastle.util.encoders.Hex;
 import org.ejbca.cvc.example.FileHelper;
+import org.ejbca.cvc.exception.ParseException;
 import org.ejbca.cvc.util.StringConverter;
 
 
@@ -114,6 +118,36 @@ public class TestPublicKey
       assertTrue("Leading zero found in modulus", modulusData[0]!=0);
    }
 
+   /** Check: A parsed public key should be of the type given by its OID */
+   public void testParseKeyType() throws Exception {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", "BC");
+      keyGen.initialize(1024, new SecureRandom());
+      byte[] rsaKey = KeyFactory.createInstance(keyGen.generateKeyPair().getPublic(), "SHA1WITHRSA", null).getDEREncoded();
+      PublicKeyRSA parsedRSA = (PublicKeyRSA)CertificateParser.parseCVCObject(rsaKey);
+      assertTrue(((ByteField)parsedRSA.getSubfield(CVCTagEnum.MODULUS)).isShowBitLength());
+      assertNotNull(parsedRSA.getPublicExponent());
+
+      byte[] certData = FileHelper.loadFile(new File("./src/test/resources/C_CZCVCADCZ000.cvcert"));
+      PublicKeyEC ecKey = (PublicKeyEC)CertificateParser.parseCertificate(certData).getCertificateBody().getPublicKey();
+      assertNotNull(ecKey.getSubfield(CVCTagEnum.COEFFICIENT_A));
+      assertNotNull(ecKey.getParams());
+
+      // Change id-TA-RSA (0.4.0.127.0.7.2.2.2.1) in the OID to an unknown key type
+      int oidPos = 0;
+      while( rsaKey[oidPos]!=0x06 ){
+         oidPos++;
+      }
+      assertEquals(0x01, rsaKey[oidPos + 2 + 8]);
+      rsaKey[oidPos + 2 + 8] = 0x03;
+      try {
+         CertificateParser.parseCVCObject(rsaKey);
+         fail("Unknown key OID should not be accepted");
+      }
+      catch( ParseException e ){
+         // expected
+      }
+   }
+
 
    /** Check: Validate methods specific for Elliptic Curve public keys */
    public void testPublicKeyEC() throws Exception {
@@ -200,6 +234,79 @@ public class TestPublicKey
       assertEquals("Number of EC subfields", 8, pubKey.getSubfields().size());
    }
 
+   /** Check: The fields to encode are decided once, and again when the enclosing body changes */
+   public void testPublicKeyECLayout() throws Exception {
+      CVCertificateBody bodyCVCA = (CVCertificateBody)CertificateParser.parseCVCObject(createBody(AuthorizationRoleEnum.CVCA).getDEREncoded());
+      PublicKeyEC ecKey = (PublicKeyEC)bodyCVCA.getPublicKey();
+      assertEquals(8, ecKey.getEncodableFields().size());
+      assertSame(ecKey.getEncodableSlots(), ecKey.getEncodableSlots());
+
+      // The same key in an IS certificate is encoded without domain parameters
+      CVCertificateBody bodyIS = new CVCertificateBody(
+            new CAReferenceField("SE", "ABCDEF", "00001"),
+            ecKey,
+            new HolderReferenceField("SE", "KLMNOPQ", "00001"),
+            AuthorizationRoleEnum.IS,
+            AccessRightsIS.DG3(),
+            new Date(),
+            new Date()
+      );
+      assertEquals(2, ecKey.getEncodableFields().size());
+      CVCertificateBody parsedIS = (CVCertificateBody)CertificateParser.parseCVCObject(bodyIS.getDEREncoded());
+      assertEquals(2, parsedIS.getPublicKey().getSubfields().size());
+
+      // Without a parent all fields are encoded
+      ecKey.setParent(null);
+      assertEquals(8, ecKey.getEncodableFields().size());
+   }
+
+   /** Check: Domain parameters are created once, and well-known curves share one named spec */
+   public void testPublicKeyECParams() throws Exception {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+      keyGen.initialize(new ECGenParameterSpec("brainpoolP256r1"));
+      PublicKeyEC ecKey1 = parseCVCAKey(keyGen.generateKeyPair());
+      PublicKeyEC ecKey2 = parseCVCAKey(keyGen.generateKeyPair());
+
+      ECParameterSpec params = ecKey1.getParams();
+      assertTrue(params instanceof ECNamedCurveSpec);
+      assertEquals("brainpoolP256r1", ((ECNamedCurveSpec)params).getName());
+      assertSame(params, ecKey2.getParams());
+
+      // Other curves get their own explicit spec, created once
+      PublicKeyEC ecKey3 = parseCVCAKey(createECKeyPair());
+      assertFalse(ecKey3.getParams() instanceof ECNamedCurveSpec);
+      assertSame(ecKey3.getParams(), ecKey3.getParams());
+   }
+
+   /** Check: Keys created on the same curve get equal domain parameters, which are not shared */
+   public void testPublicKeyECSharedParams() throws Exception {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
+      keyGen.initialize(new ECGenParameterSpec("brainpoolP384r1"));
+      PublicKeyEC ecKey1 = (PublicKeyEC)KeyFactory.createInstance(keyGen.generateKeyPair().getPublic(), "SHA256WITHECDSA", AuthorizationRoleEnum.CVCA);
+      PublicKeyEC ecKey2 = (PublicKeyEC)KeyFactory.createInstance(keyGen.generateKeyPair().getPublic(), "SHA256WITHECDSA", AuthorizationRoleEnum.CVCA);
+
+      CVCTagEnum[] params = { CVCTagEnum.MODULUS, CVCTagEnum.COEFFICIENT_A, CVCTagEnum.COEFFICIENT_B, CVCTagEnum.BASE_POINT_G, CVCTagEnum.BASE_POINT_R_ORDER };
+      for( CVCTagEnum tag : params ){
+         byte[] data1 = ((ByteField)ecKey1.getSubfield(tag)).getData();
+         byte[] data2 = ((ByteField)ecKey2.getSubfield(tag)).getData();
+         assertTrue(tag.toString(), Arrays.equals(data1, data2));
+         assertNotSame(tag.toString(), data1, data2);
+      }
+      // Modifying the parameters of one key does not affect other keys
+      byte[] modulus = ((ByteField)ecKey1.getSubfield(CVCTagEnum.MODULUS)).getData();
+      byte[] original = modulus.clone();
+      modulus[0] ^= 0x01;
+      PublicKeyEC ecKey3 = (PublicKeyEC)KeyFactory.createInstance(keyGen.generateKeyPair().getPublic(), "SHA256WITHECDSA", AuthorizationRoleEnum.CVCA);
+      assertTrue(Arrays.equals(original, ((ByteField)ecKey3.getSubfield(CVCTagEnum.MODULUS)).getData()));
+      assertNotSame(ecKey1.getSubfield(CVCTagEnum.MODULUS), ecKey2.getSubfield(CVCTagEnum.MODULUS));
+      assertFalse(Arrays.equals(((ByteField)ecKey1.getSubfield(CVCTagEnum.PUBLIC_POINT_Y)).getData(), ((ByteField)ecKey2.getSubfield(CVCTagEnum.PUBLIC_POINT_Y)).getData()));
+   }
+
+   private PublicKeyEC parseCVCAKey(KeyPair keyPair) throws Exception {
+      PublicKeyEC ecKey = (PublicKeyEC)KeyFactory.createInstance(keyPair.getPublic(), "SHA256WITHECDSA", AuthorizationRoleEnum.CVCA);
+      return (PublicKeyEC)CertificateParser.parseCVCObject(ecKey.getDEREncoded());
+   }
+
    
    private KeyPair createECKeyPair() throws Exception {
       KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
@@ -12,14 +12,20 @@
  *************************************************************************/
 package org.ejbca.cvc;
 
+import java.io.ObjectStreamClass;
+import java.security.KeyPairGenerator;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.ejbca.cvc.exception.ConstructionException;
+import org.ejbca.cvc.exception.ParseException;
 
 
 /**
@@ -67,6 +73,33 @@ public class TestSequences
       }
    }
 
+   /** Check: Subfields are kept in the order of the allowed fields, whatever order they were added in */
+   public void testSubfieldOrder() throws Exception {
+      GenericPublicKeyField generic = new GenericPublicKeyField();
+      ByteField exponent = new ByteField(CVCTagEnum.EXPONENT, new byte[]{1, 0, 1});
+      ByteField modulus = new ByteField(CVCTagEnum.MODULUS, new byte[]{1, 2, 3});
+      generic.addSubfield(exponent);
+      generic.addSubfield(modulus);
+
+      assertEquals(Arrays.asList(modulus, exponent), generic.getOrderedSubfields());
+      assertSame(exponent, generic.getOptionalSubfield(CVCTagEnum.EXPONENT));
+      assertNull(generic.getOptionalSubfield(CVCTagEnum.OID));
+      assertNull(generic.getOptionalSubfield(CVCTagEnum.EFFECTIVE_DATE));
+      // Traversal does not copy the subfields
+      assertSame(generic.getSubfieldSlots(), generic.getSubfieldSlots());
+
+      byte[] der = generic.getDEREncoded();
+      assertEquals(CVCTagEnum.MODULUS.getValue(), der[3] & 0xFF);
+      assertEquals(CVCTagEnum.EXPONENT.getValue(), der[8] & 0xFF);
+
+      // Arrays keep the order in which fields were added
+      List<CVCDiscretionaryDataTemplate> extensions = new ArrayList<CVCDiscretionaryDataTemplate>();
+      for( int i=0; i<6; i++ ){
+         extensions.add(new CVCDiscretionaryDataTemplate("1.2.3." + i, new byte[]{(byte)i}));
+      }
+      assertEquals(extensions, new CVCertificateExtensions(extensions).getExtensions());
+   }
+
    /** Check: A specific subfield may only be added once */
    public void testAddSubfieldTwice() throws Exception {
       GenericPublicKeyField generic = new GenericPublicKeyField();
@@ -92,4 +125,62 @@ public class TestSequences
       assertTrue("Arrays not equal", Arrays.equals(der, AuthorizationTemplateDER));
    }
 
+   /** Check: Sequences are serialized with the subfields in a Map, and arrays with a List, as in earlier versions */
+   public void testSerialization() throws Exception {
+      ObjectStreamClass streamClass = ObjectStreamClass.lookup(AbstractSequence.class);
+      assertEquals(Map.class, streamClass.getField("subfields").getType());
+      assertEquals(List.class, streamClass.getField("allowedFields").getType());
+
+      CVCAuthorizationTemplate authTemplate = new CVCAuthorizationTemplate(AuthorizationRoleEnum.IS, AccessRightsIS.DG3());
+      CVCAuthorizationTemplate copy = (CVCAuthorizationTemplate)TestDatafields.serializeCopy(authTemplate);
+      assertTrue("Arrays not equal", Arrays.equals(AuthorizationTemplateDER, copy.getDEREncoded()));
+      assertSame(copy, copy.getOptionalSubfield(CVCTagEnum.OID).getParent());
+
+      streamClass = ObjectStreamClass.lookup(AbstractArray.class);
+      assertEquals(List.class, streamClass.getField("subfields").getType());
+      assertEquals(CVCTagEnum.class, streamClass.getField("allowedField").getType());
+
+      // A body with extensions, which are kept in an AbstractArray
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", "BC");
+      keyGen.initialize(1024);
+      List<CVCDiscretionaryDataTemplate> extensions = new ArrayList<CVCDiscretionaryDataTemplate>();
+      for( int i=0; i<3; i++ ){
+         extensions.add(new CVCDiscretionaryDataTemplate("1.2.3." + i, new byte[]{(byte)i}));
+      }
+      CVCertificateBody body = new CVCertificateBody(new CAReferenceField("SE", "CA", "00001"),
+            KeyFactory.createInstance(keyGen.generateKeyPair().getPublic(), "SHA256WithRSA", AuthorizationRoleEnum.IS),
+            new HolderReferenceField("SE", "HOLDER", "00001"), extensions);
+      CVCertificateBody bodyCopy = (CVCertificateBody)TestDatafields.serializeCopy(body);
+      assertTrue("Arrays not equal", Arrays.equals(body.getDEREncoded(), bodyCopy.getDEREncoded()));
+      CVCertificateExtensions extensionsCopy = bodyCopy.getCertificateExtensions();
+      assertEquals(3, extensionsCopy.getExtensions().size());
+      assertEquals("1.2.3.2", extensionsCopy.getExtensions().get(2).getObjectIdentifier());
+      assertSame(extensionsCopy, extensionsCopy.getExtensions().get(2).getParent());
+   }
+
+   /** Check: Tag values that are shared by two tags should be resolved by the enclosing sequence */
+   public void testTagTable() throws Exception {
+      assertEquals(CVCTagEnum.ROLE_AND_ACCESS_RIGHTS, TagTable.ALL.find(0x53));
+      assertEquals(CVCTagEnum.ROLE_AND_ACCESS_RIGHTS, TagTable.forSequence(CVCTagEnum.HOLDER_AUTH_TEMPLATE).find(0x53));
+      assertEquals(CVCTagEnum.ARBITRARY_DATA, TagTable.forSequence(CVCTagEnum.DISCRETIONARY_DATA_TEMPLATE).find(0x53));
+      assertEquals(CVCTagEnum.EXPONENT, TagTable.RSA_PUBLIC_KEY.find(0x82));
+      assertEquals(CVCTagEnum.COEFFICIENT_A, TagTable.EC_PUBLIC_KEY.find(0x82));
+      assertEquals(CVCTagEnum.CV_CERTIFICATE, TagTable.EC_PUBLIC_KEY.find(0x7F21));
+      assertEquals(CVCTagEnum.SIGNATURE, TagTable.ALL.find(0x5F37));
+      try {
+         TagTable.ALL.find(0x5F38);
+         fail("Unknown tag should not be found");
+      }
+      catch( ParseException e ){
+         // This is expected
+      }
+      try {
+         TagTable.ALL.find(0x1F01);
+         fail("Unknown tag should not be found");
+      }
+      catch( ParseException e ){
+         // This is expected
+      }
+   }
+
 }